@@ -21,6 +21,9 @@ dependencies {
     }
     implementation("ch.qos.logback:logback-classic:1.5.6")
     implementation("org.postgresql:postgresql:42.7.3")
+    testImplementation(platform("org.junit:junit-bom:5.10.2"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 }
 
 tasks {
@@ -28,6 +31,10 @@ tasks {
         dependsOn(shadowJar)
     }
 
+    test {
+        useJUnitPlatform()
+    }
+
     jar {
         manifest {
             attributes["Main-Class"] = "me.pompompopi.star2.Star2"
@@ -1,17 +1,29 @@
 package me.pompompopi.star2;
 
 import me.pompompopi.star2.config.Configuration;
-import me.pompompopi.star2.database.DatabaseConnection;
+import me.pompompopi.star2.config.GuildSettings;
+import me.pompompopi.star2.config.GuildSettingsRegistry;
+import me.pompompopi.star2.database.ShardLeaseStore;
+import me.pompompopi.star2.database.StarboardStore;
+import me.pompompopi.star2.messages.MessageCache;
+import me.pompompopi.star2.sharding.ShardLeaseCoordinator;
+import me.pompompopi.star2.starboard.BackgroundReconciler;
+import me.pompompopi.star2.starboard.RecountEngine;
+import me.pompompopi.star2.starboard.StarCounter;
 import me.pompompopi.star2.starboard.StarboardChannelManager;
 import me.pompompopi.star2.util.ExceptionUtil;
+import me.pompompopi.star2.util.KeyedDebouncer;
+import me.pompompopi.star2.util.KeyedExecutor;
+import me.pompompopi.star2.wrappers.ExceptionLoggingExecutorService;
 import net.dv8tion.jda.api.JDA;
-import net.dv8tion.jda.api.JDABuilder;
+import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.entities.User;
 import net.dv8tion.jda.api.entities.channel.ChannelType;
+import net.dv8tion.jda.api.entities.channel.concrete.TextChannel;
+import net.dv8tion.jda.api.entities.channel.middleman.MessageChannel;
 import net.dv8tion.jda.api.entities.channel.unions.MessageChannelUnion;
 import net.dv8tion.jda.api.entities.emoji.Emoji;
-import net.dv8tion.jda.api.entities.emoji.UnicodeEmoji;
 import net.dv8tion.jda.api.events.channel.ChannelDeleteEvent;
 import net.dv8tion.jda.api.events.message.MessageBulkDeleteEvent;
 import net.dv8tion.jda.api.events.message.MessageDeleteEvent;
@@ -26,11 +38,23 @@ import net.dv8tion.jda.api.events.user.update.UserUpdateAvatarEvent;
 import net.dv8tion.jda.api.events.user.update.UserUpdateNameEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
 import net.dv8tion.jda.api.requests.GatewayIntent;
+import net.dv8tion.jda.api.sharding.DefaultShardManagerBuilder;
+import net.dv8tion.jda.api.sharding.ShardManager;
+import net.dv8tion.jda.api.utils.ChunkingFilter;
+import net.dv8tion.jda.api.utils.cache.CacheFlag;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -39,170 +63,330 @@ import java.util.function.Function;
 
 public final class Star2 extends ListenerAdapter {
     public static final Logger LOGGER = LoggerFactory.getLogger("star2");
-    private final DatabaseConnection databaseConnection;
+    private final StarboardStore starboardStore;
     private final StarboardChannelManager starboardChannelManager;
-    private final long starboardChannelId;
+    private final RecountEngine recountEngine;
+    private final BackgroundReconciler backgroundReconciler;
+    private final GuildSettingsRegistry guildSettings = new GuildSettingsRegistry();
+    private final ShardManager shardManager;
+    private final @Nullable ShardLeaseCoordinator shardLeases;
     private final long ownerId;
     private final String prefix;
-    private final int minimumStars;
-    private final UnicodeEmoji starEmoji;
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final String defaultStarEmoji;
+    private final StarCounter starCounter;
+    private final KeyedDebouncer reactionDebouncer;
+    private final KeyedDebouncer rerenderDebouncer;
+    private final MessageCache messageCache;
+    private final boolean leanCache;
+    private final ExecutorService executor = new ExceptionLoggingExecutorService(Executors.newVirtualThreadPerTaskExecutor());
+    private final KeyedExecutor messageExecutor = new KeyedExecutor(executor);
 
     Star2(final Configuration configuration) throws InterruptedException {
         try {
-            this.databaseConnection = new DatabaseConnection(configuration);
-        } catch (SQLException | ExecutionException e) {
-            throw new IllegalStateException("Failed to connect to database", e);
+            this.starboardStore = StarboardStore.create(configuration);
+        } catch (SQLException | ExecutionException | IOException e) {
+            throw new IllegalStateException("Failed to open starboard store", e);
         }
-        Runtime.getRuntime().addShutdownHook(new Thread(databaseConnection::shutdown));
-        final JDA jda = JDABuilder.create(configuration.getToken(), GatewayIntent.GUILD_MESSAGE_REACTIONS, GatewayIntent.GUILD_MESSAGES, GatewayIntent.GUILD_MEMBERS, GatewayIntent.MESSAGE_CONTENT)
-                .addEventListeners(this)
-                .build();
-        jda.awaitReady();
-        ExceptionUtil.handleExceptionAndLog(this.databaseConnection.performMigration(jda), "database migration");
-        this.starboardChannelManager = new StarboardChannelManager(jda, configuration, databaseConnection);
-        this.starboardChannelId = configuration.getStarboardChannel();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+        this.messageCache = new MessageCache(executor, channelId -> this.shardManager.getTextChannelById(channelId), configuration.getMessageCacheSize(), configuration.getMessageCacheTimeToLive());
+        this.leanCache = configuration.isLeanCache();
+        this.guildSettings.replaceAll(starboardStore.loadGuildSettings().join());
+        this.shardLeases = configuration.isShardLeases() ? createShardLeaseCoordinator(configuration) : null;
+        final DefaultShardManagerBuilder shardManagerBuilder = DefaultShardManagerBuilder.create(configuration.getToken(), GatewayIntent.GUILD_MESSAGE_REACTIONS, GatewayIntent.GUILD_MESSAGES, GatewayIntent.GUILD_MEMBERS, GatewayIntent.MESSAGE_CONTENT)
+                .setShardsTotal(configuration.getShardCount())
+                .addEventListeners(this);
+        if (shardLeases != null)
+            shardManagerBuilder.setShards(shardLeases.awaitInitialLeases());
+        if (leanCache) {
+            // Only starboard authors are ever rendered, so they are the only members worth keeping
+            shardManagerBuilder.setMemberCachePolicy(member -> starboardStore.userHasBoardEntry(member.getIdLong()).getNow(false))
+                    .setChunkingFilter(ChunkingFilter.NONE)
+                    .disableCache(CacheFlag.ACTIVITY, CacheFlag.CLIENT_STATUS, CacheFlag.ONLINE_STATUS, CacheFlag.VOICE_STATE, CacheFlag.EMOJI, CacheFlag.STICKER, CacheFlag.SCHEDULED_EVENTS, CacheFlag.ROLE_TAGS);
+        }
+        // Built without logging in, so every collaborator the listener uses exists before the first event arrives
+        this.shardManager = shardManagerBuilder.build(false);
         this.ownerId = configuration.getOwnerId();
         this.prefix = configuration.getPrefix();
-        this.minimumStars = configuration.getMinimumReactions();
-        this.starEmoji = Emoji.fromUnicode(configuration.getStarEmoji());
+        this.defaultStarEmoji = configuration.getStarEmoji();
+        this.starboardChannelManager = new StarboardChannelManager(shardManager, guildSettings, shardLeases, configuration, starboardStore, executor, messageExecutor, messageCache);
+        this.starCounter = new StarCounter(executor, configuration.getStarCounterSize(), configuration.getStarCountReconcileInterval());
+        this.reactionDebouncer = new KeyedDebouncer("Reaction debouncer", executor, configuration.getReactionDebounce());
+        this.rerenderDebouncer = new KeyedDebouncer("Re-render debouncer", executor, configuration.getRerenderDebounce());
+        this.recountEngine = new RecountEngine(starboardChannelManager, starboardStore, messageCache, configuration);
+        this.backgroundReconciler = new BackgroundReconciler(starboardChannelManager, starboardStore, messageCache, recountEngine, configuration);
+        shardManager.login();
+        if (shardLeases != null)
+            shardLeases.start(shardManager::start, shardManager::shutdown);
+        for (final JDA shard : shardManager.getShards())
+            shard.awaitReady();
+        seedLegacyGuildSettings(configuration);
+        if (leanCache)
+            ExceptionUtil.handleExceptionAndLog(CompletableFuture.runAsync(this::loadStarboardMembers, executor), "starboard member load");
+        // Other shards' rows would resolve as missing, so only a process holding every shard migrates the shared table
+        if (shardLeases == null || shardLeases.holdsEveryShard())
+            ExceptionUtil.handleExceptionAndLog(this.starboardStore.performMigration(shardManager, messageCache, () -> shardLeases == null || shardLeases.holdsEveryShard()), "database migration");
+        else
+            LOGGER.info("Skipping database migrations, they run once a process starts holding every shard");
+        this.recountEngine.resume(this);
+        this.backgroundReconciler.start(this);
     }
 
     public static void main(final String[] args) throws InterruptedException {
         new Star2(new Configuration());
     }
 
-    private boolean isNotStar(final Emoji emoji) {
-        return emoji.getType() != Emoji.Type.UNICODE || !emoji.equals(starEmoji);
+    private ShardLeaseCoordinator createShardLeaseCoordinator(final Configuration configuration) {
+        final ShardLeaseStore store = starboardStore.getShardLeaseStore().orElseThrow(() -> new IllegalArgumentException("Shard leases require the postgres store"));
+        if (configuration.getShardCount() < 1)
+            throw new IllegalArgumentException("Shard leases require SHARD_COUNT to be set, every process must agree on it");
+        return new ShardLeaseCoordinator(store, configuration.getShardCount(), configuration.getShardLeaseDuration());
     }
 
-    public CompletableFuture<Long> countStarsExcludingAuthor(final Message message) {
-        return CompletableFuture.supplyAsync(() -> {
-            final long authorId = message.getAuthor().getIdLong();
-            return message.retrieveReactionUsers(starEmoji).stream().filter(u -> u.getIdLong() != authorId).count();
-        }, executor);
+    // The gateway is closed before leases are released so no event is handled once another process may own the shard
+    private void shutdown() {
+        if (this.shardManager != null)
+            this.shardManager.shutdown();
+        if (this.shardLeases != null)
+            this.shardLeases.shutdown();
+        this.starboardStore.shutdown();
     }
 
-    public int getMinimumStars() {
-        return this.minimumStars;
+    // Deployments configured with a single STARBOARD_CHANNEL keep working, it becomes that guild's settings
+    private void seedLegacyGuildSettings(final Configuration configuration) {
+        if (configuration.getStarboardChannel() == 0)
+            return;
+        final TextChannel channel = shardManager.getTextChannelById(configuration.getStarboardChannel());
+        if (channel == null) {
+            LOGGER.warn("Configured starboard channel {} is not visible to any shard", configuration.getStarboardChannel());
+            return;
+        }
+        final long guildId = channel.getGuild().getIdLong();
+        if (guildSettings.get(guildId) != null)
+            return;
+        final GuildSettings settings = GuildSettings.of(guildId, channel.getIdLong(), configuration.getStarEmoji(), configuration.getMinimumReactions());
+        starboardStore.saveGuildSettings(settings).join();
+        guildSettings.put(settings);
     }
 
-    @Override
-    public void onMessageReactionAdd(final MessageReactionAddEvent event) {
-        final MessageChannelUnion channel = event.getChannel();
-        if (starboardChannelId == channel.getIdLong())
-            return;
+    // Settings of the guild an event happened in, null when the channel is not watched for stars
+    @Nullable
+    private GuildSettings watchedSettings(final MessageChannelUnion channel) {
         if (!channel.getType().isGuild())
-            return;
+            return null;
+        if (shardLeases != null && !shardLeases.holds(channel.getJDA().getShardInfo().getShardId()))
+            return null;
+        final GuildSettings settings = guildSettings.get(channel.asGuildMessageChannel().getGuild().getIdLong());
+        if (settings == null || settings.starboardChannelId() == channel.getIdLong())
+            return null;
         if (channel.getType() == ChannelType.TEXT && channel.asTextChannel().isNSFW())
-            return;
-        if (isNotStar(event.getEmoji()))
-            return;
-        event.retrieveMessage().queue(message -> {
-            final long starCount = countStarsExcludingAuthor(message).join();
-            if (starCount < minimumStars)
+            return null;
+        return settings;
+    }
+
+    private boolean isStarboardChannel(final MessageChannelUnion channel) {
+        if (!channel.getType().isGuild())
+            return false;
+        final GuildSettings settings = guildSettings.get(channel.asGuildMessageChannel().getGuild().getIdLong());
+        return settings != null && settings.starboardChannelId() == channel.getIdLong();
+    }
+
+    // Without chunking, starboard authors are fetched by id so their name and avatar updates are still delivered
+    private void loadStarboardMembers() {
+        final Map<Long, Set<Long>> authorIdsByGuild = new HashMap<>();
+        starboardStore.forEachRow(row -> {
+            if (row.originalAuthorId() == -1)
                 return;
+            final TextChannel originalChannel = row.guildId() == 0 ? shardManager.getTextChannelById(row.originalChannelId()) : null;
+            final long guildId = originalChannel == null ? row.guildId() : originalChannel.getGuild().getIdLong();
+            authorIdsByGuild.computeIfAbsent(guildId, ignored -> new HashSet<>()).add(row.originalAuthorId());
+        }).join();
+        int loaded = 0;
+        for (final Map.Entry<Long, Set<Long>> entry : authorIdsByGuild.entrySet()) {
+            final Guild guild = shardManager.getGuildById(entry.getKey());
+            if (guild == null)
+                continue;
+            final List<Long> ids = List.copyOf(entry.getValue());
+            for (int i = 0; i < ids.size(); i += 100)
+                guild.retrieveMembersByIds(ids.subList(i, Math.min(i + 100, ids.size()))).get();
+            loaded += ids.size();
+        }
+        LOGGER.info("Loaded {} starboard authors into the member cache", loaded);
+    }
+
+    private void cacheAuthor(final Message message) {
+        if (!leanCache || !message.isFromGuild())
+            return;
+        final Guild guild = message.getGuild();
+        final long authorId = message.getAuthor().getIdLong();
+        if (starboardStore.userHasBoardEntry(authorId).join()) {
+            if (guild.getMemberById(authorId) == null)
+                guild.retrieveMemberById(authorId).queue(null, e -> LOGGER.warn("Failed to cache starboard author {}", authorId, e));
+        } else {
+            guild.unloadMember(authorId);
+        }
+    }
+
+    public CompletableFuture<Long> countStarsExcludingAuthor(final Message message, final Emoji starEmoji) {
+        return starCounter.reconcile(message, starEmoji);
+    }
 
-            ExceptionUtil.handleExceptionAndLog(this.starboardChannelManager.updateOrCreateEntry(message, message.getReferencedMessage(), (short) starCount), "message reaction add event");
-        }, e -> LOGGER.warn("Failed to process message reaction add", e));
+    private String describeStatistics() {
+        final List<String> lines = new ArrayList<>();
+        lines.add("Guilds: " + guildSettings.size() + " configured across " + shardManager.getShardsTotal() + " shards");
+        if (shardLeases != null)
+            lines.add(shardLeases.toString());
+        lines.addAll(starboardStore.describeStatistics());
+        lines.add(messageCache.statistics().toString());
+        lines.add(messageCache.describeHistoryFetches());
+        lines.addAll(starboardChannelManager.describeStatistics());
+        lines.add(starCounter.toString());
+        lines.add(reactionDebouncer.toString());
+        lines.add(rerenderDebouncer.toString());
+        lines.add(recountEngine.status());
+        lines.add(backgroundReconciler.toString());
+        lines.add("Message executor: " + messageExecutor.activeKeys() + " messages with queued work");
+        return String.join("\n", lines);
+    }
+
+    // Reaction bursts on one message collapse into a single count and a single create, edit or delete
+    private void scheduleReactionEvaluation(final MessageChannel channel, final long messageId, final GuildSettings settings) {
+        reactionDebouncer.submit(messageId, () -> messageExecutor.submit(messageId, () -> {
+            final Message message = messageCache.retrieve(channel, messageId).join();
+            final long starCount = starCounter.count(message, settings.starEmoji()).join();
+            final boolean changed = starCount < settings.minimumStars() ? starboardChannelManager.removeEntry(messageId).join() : starboardChannelManager.updateOrCreateEntry(message, message.getReferencedMessage(), (short) starCount).join();
+            if (changed)
+                cacheAuthor(message);
+            return changed;
+        }).join());
     }
 
     @Override
-    public void onMessageReactionRemove(final MessageReactionRemoveEvent event) {
+    public void onMessageReactionAdd(final MessageReactionAddEvent event) {
         final MessageChannelUnion channel = event.getChannel();
-        if (starboardChannelId == channel.getIdLong())
-            return;
-        if (!channel.getType().isGuild())
-            return;
-        if (channel.getType() == ChannelType.TEXT && channel.asTextChannel().isNSFW())
+        final GuildSettings settings = watchedSettings(channel);
+        if (settings == null || !settings.isStar(event.getEmoji()))
             return;
-        if (isNotStar(event.getEmoji()))
+        starCounter.add(event.getMessageIdLong(), event.getUserIdLong());
+        scheduleReactionEvaluation(channel, event.getMessageIdLong(), settings);
+    }
+
+    @Override
+    public void onMessageReactionRemove(final MessageReactionRemoveEvent event) {
+        final MessageChannelUnion channel = event.getChannel();
+        final GuildSettings settings = watchedSettings(channel);
+        if (settings == null || !settings.isStar(event.getEmoji()))
             return;
-        event.retrieveMessage().queue(message -> {
-            final long starCount = countStarsExcludingAuthor(message).join();
-            if (starCount >= minimumStars)
-                return;
-            ExceptionUtil.handleExceptionAndLog(this.starboardChannelManager.removeEntry(event.getMessageIdLong()), "message reaction remove event");
-        }, e -> LOGGER.warn("Failed to process message reaction remove", e));
+        starCounter.remove(event.getMessageIdLong(), event.getUserIdLong());
+        scheduleReactionEvaluation(channel, event.getMessageIdLong(), settings);
     }
 
     @Override
     public void onMessageReactionRemoveAll(final MessageReactionRemoveAllEvent event) {
-        if (starboardChannelId == event.getChannel().getIdLong())
+        final GuildSettings settings = watchedSettings(event.getChannel());
+        if (settings == null)
             return;
-        ExceptionUtil.handleExceptionAndLog(starboardChannelManager.removeEntry(event.getMessageIdLong()), "message reaction remove all event handler");
+        starCounter.forget(event.getMessageIdLong());
+        scheduleReactionEvaluation(event.getChannel(), event.getMessageIdLong(), settings);
     }
 
     @Override
     public void onMessageReactionRemoveEmoji(final MessageReactionRemoveEmojiEvent event) {
         final MessageChannelUnion channel = event.getChannel();
-        if (starboardChannelId == channel.getIdLong())
-            return;
-        if (!channel.getType().isGuild())
+        final GuildSettings settings = watchedSettings(channel);
+        if (settings == null || !settings.isStar(event.getEmoji()))
             return;
-        if (channel.getType() == ChannelType.TEXT && channel.asTextChannel().isNSFW())
-            return;
-        final Emoji emoji = event.getEmoji();
-        if (emoji.getType() != Emoji.Type.UNICODE)
-            return;
-        if (!emoji.equals(starEmoji))
-            return;
-        ExceptionUtil.handleExceptionAndLog(starboardChannelManager.removeEntry(event.getMessageIdLong()), "message reaction remove emoji event handler");
+        starCounter.forget(event.getMessageIdLong());
+        scheduleReactionEvaluation(channel, event.getMessageIdLong(), settings);
     }
 
     @Override
     public void onMessageReceived(final MessageReceivedEvent event) {
         final MessageChannelUnion channel = event.getChannel();
-        if (starboardChannelId == channel.getIdLong())
-            return;
         if (!channel.getType().isGuild())
             return;
-        if (channel.getType() == ChannelType.TEXT && channel.asTextChannel().isNSFW())
-            return;
         if (event.getAuthor().getIdLong() != ownerId)
             return;
         final String content = event.getMessage().getContentRaw().trim();
         if (!content.startsWith(this.prefix))
             return;
-        LOGGER.info("Triggered recount");
-        final boolean redo;
-        if (content.endsWith("recount")) {
-            redo = false;
-        } else if (content.endsWith("redo")) {
-            redo = true;
-        } else {
+        final String[] arguments = content.substring(this.prefix.length()).trim().split("\\s+");
+        if (arguments[0].equals("setup") && channel.getType() == ChannelType.TEXT) {
+            setup(event.getMessage(), channel.asTextChannel(), arguments);
+            return;
+        }
+        if (watchedSettings(channel) == null)
             return;
+        switch (arguments[0]) {
+            case "stats" -> event.getMessage().reply(describeStatistics()).queue();
+            case "recount", "redo" -> recount(event.getMessage(), arguments[0].equals("redo"), arguments.length > 1 ? arguments[1] : "");
         }
-        starboardChannelManager.recalculateEveryEntry(event.getJDA(), this, redo);
+    }
+
+    // s2!recount, s2!redo, followed by status or cancel to follow or stop the running one
+    private void recount(final Message message, final boolean redo, final String action) {
+        switch (action) {
+            case "status" -> message.reply(recountEngine.status()).queue();
+            case "cancel" -> message.reply(recountEngine.cancel() ? "Cancelling recount" : "No recount is running").queue();
+            default -> {
+                if (!recountEngine.start(this, redo)) {
+                    message.reply("A recount is already running, see " + prefix + "recount status").queue();
+                    return;
+                }
+                LOGGER.info("Triggered recount");
+                message.reply("Recount started, see " + prefix + "recount status").queue();
+            }
+        }
+    }
+
+    // s2!setup <minimum stars> [emoji], run in the channel that should become the guild's starboard
+    private void setup(final Message message, final TextChannel channel, final String[] arguments) {
+        final short minimumStars;
+        try {
+            minimumStars = arguments.length < 2 ? -1 : Short.parseShort(arguments[1]);
+        } catch (NumberFormatException e) {
+            message.reply("Invalid minimum star count").queue();
+            return;
+        }
+        if (minimumStars < 1) {
+            message.reply("Usage: " + prefix + "setup <minimum stars> [emoji]").queue();
+            return;
+        }
+        final long guildId = channel.getGuild().getIdLong();
+        final GuildSettings existing = guildSettings.get(guildId);
+        final String emoji = arguments.length > 2 ? arguments[2] : existing == null ? defaultStarEmoji : existing.starEmoji().getName();
+        final GuildSettings settings = GuildSettings.of(guildId, channel.getIdLong(), emoji, minimumStars);
+        ExceptionUtil.handleExceptionAndLog(starboardStore.saveGuildSettings(settings).thenRun(() -> {
+            guildSettings.put(settings);
+            message.reply("Starboard set to " + channel.getAsMention() + " with " + minimumStars + " " + emoji).queue();
+        }), "starboard setup");
     }
 
     @Override
     public void onMessageUpdate(final MessageUpdateEvent event) {
         final MessageChannelUnion channel = event.getChannel();
-        if (starboardChannelId == channel.getIdLong())
-            return;
-        if (!channel.getType().isGuild())
+        if (watchedSettings(channel) == null)
             return;
-        if (channel.getType() == ChannelType.TEXT && channel.asTextChannel().isNSFW())
-            return;
-        event.getChannel().retrieveMessageById(event.getMessageIdLong()).queue(message -> ExceptionUtil.handleExceptionAndLog(starboardChannelManager.updateWithoutCreatingEntry(message, message.getReferencedMessage(), (short) -1), "message update event handler"));
+        messageCache.invalidate(event.getMessageIdLong());
+        ExceptionUtil.handleExceptionAndLog(messageCache.retrieve(channel, event.getMessageIdLong()).thenComposeAsync(message -> starboardChannelManager.updateWithoutCreatingEntry(message, message.getReferencedMessage(), (short) -1), executor), "message update event handler");
     }
 
     @Override
     public void onMessageDelete(final MessageDeleteEvent event) {
         final long messageId = event.getMessageIdLong();
-        if (starboardChannelId == event.getChannel().getIdLong()) {
-            ExceptionUtil.handleExceptionAndLog(databaseConnection.removeBoardEntry(messageId), "message delete event handler (message in starboard channel)");
+        messageCache.invalidate(messageId);
+        if (isStarboardChannel(event.getChannel())) {
+            ExceptionUtil.handleExceptionAndLog(starboardStore.removeBoardEntry(messageId), "message delete event handler (message in starboard channel)");
             return;
         }
 
+        starCounter.forget(messageId);
         ExceptionUtil.handleExceptionAndLog(starboardChannelManager.removeEntry(messageId), "message delete event handler");
     }
 
     @Override
     public void onMessageBulkDelete(final MessageBulkDeleteEvent event) {
-        final Function<Long, CompletableFuture<?>> messageIdFunc = event.getChannel().getIdLong() == starboardChannelId ? databaseConnection::removeBoardEntry : starboardChannelManager::removeEntry;
-        ExceptionUtil.handleExceptionAndLog(CompletableFuture.allOf(event.getMessageIds().stream().map(Long::parseUnsignedLong).map(messageIdFunc).toArray(CompletableFuture[]::new)), "message bulk delete event handler");
+        final Function<Long, CompletableFuture<?>> messageIdFunc = isStarboardChannel(event.getChannel()) ? starboardStore::removeBoardEntry : starboardChannelManager::removeEntry;
+        ExceptionUtil.handleExceptionAndLog(CompletableFuture.allOf(event.getMessageIds().stream().map(Long::parseUnsignedLong).peek(messageCache::invalidate).peek(starCounter::forget).map(messageIdFunc).toArray(CompletableFuture[]::new)), "message bulk delete event handler");
     }
 
     private void onDisplayedUserInfoUpdate(final GenericUserUpdateEvent<?> event) {
@@ -210,11 +394,12 @@ public final class Star2 extends ListenerAdapter {
         if (user.isBot())
             return;
         final long userId = user.getIdLong();
-        ExceptionUtil.handleExceptionAndLog(databaseConnection.userHasBoardEntry(userId).thenAcceptAsync(hasBoardEntry -> {
+        ExceptionUtil.handleExceptionAndLog(starboardStore.userHasBoardEntry(userId).thenAcceptAsync(hasBoardEntry -> {
             if (!hasBoardEntry)
                 return;
-            starboardChannelManager.updateEveryUserEntry(event.getJDA(), userId);
-        }), "displayed user info update");
+            // A name and an avatar change in quick succession cost a single sweep, rendered with the latest user
+            rerenderDebouncer.submit(userId, () -> starboardChannelManager.updateEveryUserEntry(user).join());
+        }, executor), "displayed user info update");
     }
 
     @Override
@@ -230,10 +415,13 @@ public final class Star2 extends ListenerAdapter {
     @Override
     public void onChannelDelete(@NotNull final ChannelDeleteEvent event) {
         final long id = event.getChannel().getIdLong();
-        if (id == starboardChannelId) {
-            ExceptionUtil.handleExceptionAndLog(databaseConnection.removeAllBoardEntries(), "channel deletion (starboard channel)");
-            return;
+        if (event.getChannel().getType().isGuild()) {
+            final GuildSettings settings = guildSettings.get(event.getGuild().getIdLong());
+            if (settings != null && settings.starboardChannelId() == id) {
+                ExceptionUtil.handleExceptionAndLog(starboardChannelManager.removeGuildEntries(settings.guildId()), "channel deletion (starboard channel)");
+                return;
+            }
         }
-        ExceptionUtil.handleExceptionAndLog(starboardChannelManager.removeEntriesInChannel(event.getJDA(), event.getChannel().getIdLong()), "channel deletion");
+        ExceptionUtil.handleExceptionAndLog(starboardChannelManager.removeEntriesInChannel(id), "channel deletion");
     }
 }
\ No newline at end of file
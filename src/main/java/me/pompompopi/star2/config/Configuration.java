@@ -8,9 +8,13 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Locale;
 
 public class Configuration {
     private final String token;
+    private final StoreType storeType;
+    private final Path journalPath;
+    private final long journalCompactionInterval;
     private final String starEmoji;
     private final short minimumReactions;
     private final long starboardChannel;
@@ -18,22 +22,92 @@ public class Configuration {
     private final int databasePort;
     private final String databaseUsername;
     private final String databasePassword;
+    private final int databasePoolSize;
+    private final long databasePoolTimeout;
+    private final long databasePoolValidationInterval;
+    private final int databaseStatementCacheSize;
+    private final long databaseReconnectMaximumDelay;
+    private final int starCountBufferSize;
+    private final long starCountFlushInterval;
+    private final int boardEntryCacheSize;
+    private final long boardEntryCacheTimeToLive;
+    private final int databaseFetchSize;
+    private final int recountConcurrency;
+    private final int recountRestBudget;
+    private final long reconcileWindow;
+    private final long reconcileMinimumInterval;
+    private final long reconcileMaximumInterval;
+    private final int reconcileBatchSize;
+    private final int rerenderConcurrency;
+    private final long rerenderDebounce;
+    private final int migrationChunkSize;
+    private final int migrationConcurrency;
+    private final int starCounterSize;
+    private final long starCountReconcileInterval;
+    private final long reactionDebounce;
+    private final int messageCacheSize;
+    private final long messageCacheTimeToLive;
+    private final int outboundConcurrency;
+    private final boolean leanCache;
+    private final int shardCount;
+    private final boolean shardLeases;
+    private final long shardLeaseDuration;
     private final long ownerId;
     private final String prefix;
 
     public Configuration() {
         this.token = getEnvironmentVariable("DISCORD_TOKEN");
+        this.storeType = ExceptionUtil.wrap(IllegalArgumentException.class, () -> StoreType.valueOf(getEnvironmentVariable("STORE", "postgres").toUpperCase(Locale.ROOT)), e -> new IllegalArgumentException("Invalid store provided, expected postgres or journal", e));
+        this.journalPath = Path.of(getEnvironmentVariable("JOURNAL_PATH", "star2.journal"));
+        this.journalCompactionInterval = ExceptionUtil.wrap(NumberFormatException.class, () -> Long.parseUnsignedLong(getEnvironmentVariable("JOURNAL_COMPACTION_INTERVAL", "300000")), e -> new IllegalArgumentException("Invalid journal compaction interval provided", e));
         this.starEmoji = getEnvironmentVariable("EMOJI", "⭐");
         this.minimumReactions = ExceptionUtil.wrap(NumberFormatException.class, () -> Short.parseShort(getEnvironmentVariable("MINIMUM_REACTIONS", "3")), e -> new IllegalArgumentException("Invalid minimum reaction count provided", e));
-        this.starboardChannel = ExceptionUtil.wrap(NumberFormatException.class, () -> Long.parseUnsignedLong(getEnvironmentVariable("STARBOARD_CHANNEL")), e -> new IllegalArgumentException("Invalid starboard channel provided", e));
+        this.starboardChannel = ExceptionUtil.wrap(NumberFormatException.class, () -> Long.parseUnsignedLong(getEnvironmentVariable("STARBOARD_CHANNEL", "0")), e -> new IllegalArgumentException("Invalid starboard channel provided", e));
         this.databaseHost = getEnvironmentVariable("DATABASE_HOST", "localhost");
         this.databasePort = ExceptionUtil.wrap(NumberFormatException.class, () -> Integer.parseUnsignedInt(getEnvironmentVariable("DATABASE_PORT", "5432")), e -> new IllegalArgumentException("Invalid database port provided", e));
         this.databaseUsername = getEnvironmentVariable("DATABASE_USERNAME", "postgres");
-        this.databasePassword = getEnvironmentVariable("DATABASE_PASSWORD");
+        this.databasePassword = storeType == StoreType.POSTGRES ? getEnvironmentVariable("DATABASE_PASSWORD") : null;
+        this.databasePoolSize = ExceptionUtil.wrap(NumberFormatException.class, () -> Integer.parseUnsignedInt(getEnvironmentVariable("DATABASE_POOL_SIZE", "8")), e -> new IllegalArgumentException("Invalid database pool size provided", e));
+        this.databasePoolTimeout = ExceptionUtil.wrap(NumberFormatException.class, () -> Long.parseUnsignedLong(getEnvironmentVariable("DATABASE_POOL_TIMEOUT", "10000")), e -> new IllegalArgumentException("Invalid database pool timeout provided", e));
+        this.databasePoolValidationInterval = ExceptionUtil.wrap(NumberFormatException.class, () -> Long.parseUnsignedLong(getEnvironmentVariable("DATABASE_POOL_VALIDATION_INTERVAL", "30000")), e -> new IllegalArgumentException("Invalid database pool validation interval provided", e));
+        this.databaseStatementCacheSize = ExceptionUtil.wrap(NumberFormatException.class, () -> Integer.parseUnsignedInt(getEnvironmentVariable("DATABASE_STATEMENT_CACHE_SIZE", "32")), e -> new IllegalArgumentException("Invalid database statement cache size provided", e));
+        this.databaseReconnectMaximumDelay = ExceptionUtil.wrap(NumberFormatException.class, () -> Long.parseUnsignedLong(getEnvironmentVariable("DATABASE_RECONNECT_MAXIMUM_DELAY", "30000")), e -> new IllegalArgumentException("Invalid database reconnect maximum delay provided", e));
+        this.starCountBufferSize = ExceptionUtil.wrap(NumberFormatException.class, () -> Integer.parseUnsignedInt(getEnvironmentVariable("STAR_COUNT_BUFFER_SIZE", "256")), e -> new IllegalArgumentException("Invalid star count buffer size provided", e));
+        this.starCountFlushInterval = ExceptionUtil.wrap(NumberFormatException.class, () -> Long.parseUnsignedLong(getEnvironmentVariable("STAR_COUNT_FLUSH_INTERVAL", "5000")), e -> new IllegalArgumentException("Invalid star count flush interval provided", e));
+        this.boardEntryCacheSize = ExceptionUtil.wrap(NumberFormatException.class, () -> Integer.parseUnsignedInt(getEnvironmentVariable("BOARD_ENTRY_CACHE_SIZE", "10000")), e -> new IllegalArgumentException("Invalid board entry cache size provided", e));
+        this.boardEntryCacheTimeToLive = ExceptionUtil.wrap(NumberFormatException.class, () -> Long.parseUnsignedLong(getEnvironmentVariable("BOARD_ENTRY_CACHE_TTL", "600000")), e -> new IllegalArgumentException("Invalid board entry cache TTL provided", e));
+        this.databaseFetchSize = ExceptionUtil.wrap(NumberFormatException.class, () -> Integer.parseUnsignedInt(getEnvironmentVariable("DATABASE_FETCH_SIZE", "500")), e -> new IllegalArgumentException("Invalid database fetch size provided", e));
+        this.recountConcurrency = ExceptionUtil.wrap(NumberFormatException.class, () -> requirePositive(Integer.parseUnsignedInt(getEnvironmentVariable("RECOUNT_CONCURRENCY", "16"))), e -> new IllegalArgumentException("Invalid recount concurrency provided", e));
+        this.recountRestBudget = ExceptionUtil.wrap(NumberFormatException.class, () -> requirePositive(Integer.parseUnsignedInt(getEnvironmentVariable("RECOUNT_REST_BUDGET", "10"))), e -> new IllegalArgumentException("Invalid recount REST budget provided", e));
+        this.reconcileWindow = ExceptionUtil.wrap(NumberFormatException.class, () -> Long.parseUnsignedLong(getEnvironmentVariable("RECONCILE_WINDOW", "604800000")), e -> new IllegalArgumentException("Invalid reconcile window provided", e));
+        this.reconcileMinimumInterval = ExceptionUtil.wrap(NumberFormatException.class, () -> Long.parseUnsignedLong(getEnvironmentVariable("RECONCILE_MIN_INTERVAL", "1000")), e -> new IllegalArgumentException("Invalid reconcile minimum interval provided", e));
+        this.reconcileMaximumInterval = ExceptionUtil.wrap(NumberFormatException.class, () -> Long.parseUnsignedLong(getEnvironmentVariable("RECONCILE_MAX_INTERVAL", "30000")), e -> new IllegalArgumentException("Invalid reconcile maximum interval provided", e));
+        this.reconcileBatchSize = ExceptionUtil.wrap(NumberFormatException.class, () -> Integer.parseUnsignedInt(getEnvironmentVariable("RECONCILE_BATCH_SIZE", "10")), e -> new IllegalArgumentException("Invalid reconcile batch size provided", e));
+        this.rerenderConcurrency = ExceptionUtil.wrap(NumberFormatException.class, () -> requirePositive(Integer.parseUnsignedInt(getEnvironmentVariable("RERENDER_CONCURRENCY", "4"))), e -> new IllegalArgumentException("Invalid re-render concurrency provided", e));
+        this.rerenderDebounce = ExceptionUtil.wrap(NumberFormatException.class, () -> Long.parseUnsignedLong(getEnvironmentVariable("RERENDER_DEBOUNCE", "10000")), e -> new IllegalArgumentException("Invalid re-render debounce provided", e));
+        this.migrationChunkSize = ExceptionUtil.wrap(NumberFormatException.class, () -> requirePositive(Integer.parseUnsignedInt(getEnvironmentVariable("MIGRATION_CHUNK_SIZE", "100"))), e -> new IllegalArgumentException("Invalid migration chunk size provided", e));
+        this.migrationConcurrency = ExceptionUtil.wrap(NumberFormatException.class, () -> requirePositive(Integer.parseUnsignedInt(getEnvironmentVariable("MIGRATION_CONCURRENCY", "4"))), e -> new IllegalArgumentException("Invalid migration concurrency provided", e));
+        this.starCounterSize = ExceptionUtil.wrap(NumberFormatException.class, () -> Integer.parseUnsignedInt(getEnvironmentVariable("STAR_COUNTER_SIZE", "10000")), e -> new IllegalArgumentException("Invalid star counter size provided", e));
+        this.starCountReconcileInterval = ExceptionUtil.wrap(NumberFormatException.class, () -> Long.parseUnsignedLong(getEnvironmentVariable("STAR_COUNT_RECONCILE_INTERVAL", "900000")), e -> new IllegalArgumentException("Invalid star count reconcile interval provided", e));
+        this.reactionDebounce = ExceptionUtil.wrap(NumberFormatException.class, () -> Long.parseUnsignedLong(getEnvironmentVariable("REACTION_DEBOUNCE", "2000")), e -> new IllegalArgumentException("Invalid reaction debounce provided", e));
+        this.messageCacheSize = ExceptionUtil.wrap(NumberFormatException.class, () -> Integer.parseUnsignedInt(getEnvironmentVariable("MESSAGE_CACHE_SIZE", "2000")), e -> new IllegalArgumentException("Invalid message cache size provided", e));
+        this.messageCacheTimeToLive = ExceptionUtil.wrap(NumberFormatException.class, () -> Long.parseUnsignedLong(getEnvironmentVariable("MESSAGE_CACHE_TTL", "300000")), e -> new IllegalArgumentException("Invalid message cache TTL provided", e));
+        this.outboundConcurrency = ExceptionUtil.wrap(NumberFormatException.class, () -> requirePositive(Integer.parseUnsignedInt(getEnvironmentVariable("OUTBOUND_CONCURRENCY", "2"))), e -> new IllegalArgumentException("Invalid outbound concurrency provided", e));
+        this.leanCache = Boolean.parseBoolean(getEnvironmentVariable("LEAN_CACHE", "false"));
+        this.shardCount = ExceptionUtil.wrap(NumberFormatException.class, () -> Integer.parseInt(getEnvironmentVariable("SHARD_COUNT", "-1")), e -> new IllegalArgumentException("Invalid shard count provided", e));
+        this.shardLeases = Boolean.parseBoolean(getEnvironmentVariable("SHARD_LEASES", "false"));
+        this.shardLeaseDuration = ExceptionUtil.wrap(NumberFormatException.class, () -> Long.parseUnsignedLong(getEnvironmentVariable("SHARD_LEASE_DURATION", "30000")), e -> new IllegalArgumentException("Invalid shard lease duration provided", e));
         this.ownerId = ExceptionUtil.wrap(NumberFormatException.class, () -> Long.parseUnsignedLong(getEnvironmentVariable("OWNER_ID")), e -> new IllegalArgumentException("Invalid owner id provided", e));
         this.prefix = getEnvironmentVariable("PREFIX", "s2!");
     }
 
+    // Counts used for permits and rates, zero would divide by zero or leave work waiting forever
+    private static int requirePositive(final int value) {
+        if (value < 1)
+            throw new NumberFormatException("Value must be at least 1");
+        return value;
+    }
+
     private String getEnvironmentVariable(final String key) {
         return getEnvironmentVariable(key, null);
     }
@@ -55,6 +129,18 @@ public class Configuration {
         return token;
     }
 
+    public StoreType getStoreType() {
+        return storeType;
+    }
+
+    public Path getJournalPath() {
+        return journalPath;
+    }
+
+    public long getJournalCompactionInterval() {
+        return journalCompactionInterval;
+    }
+
     public String getStarEmoji() {
         return starEmoji;
     }
@@ -63,6 +149,7 @@ public class Configuration {
         return minimumReactions;
     }
 
+    // 0 when no legacy single-guild starboard channel is configured
     public long getStarboardChannel() {
         return starboardChannel;
     }
@@ -79,6 +166,129 @@ public class Configuration {
         return databaseUsername;
     }
 
+    public int getDatabasePoolSize() {
+        return databasePoolSize;
+    }
+
+    public long getDatabasePoolTimeout() {
+        return databasePoolTimeout;
+    }
+
+    public long getDatabasePoolValidationInterval() {
+        return databasePoolValidationInterval;
+    }
+
+    public int getDatabaseStatementCacheSize() {
+        return databaseStatementCacheSize;
+    }
+
+    public long getDatabaseReconnectMaximumDelay() {
+        return databaseReconnectMaximumDelay;
+    }
+
+    public int getStarCountBufferSize() {
+        return starCountBufferSize;
+    }
+
+    public long getStarCountFlushInterval() {
+        return starCountFlushInterval;
+    }
+
+    public int getBoardEntryCacheSize() {
+        return boardEntryCacheSize;
+    }
+
+    public long getBoardEntryCacheTimeToLive() {
+        return boardEntryCacheTimeToLive;
+    }
+
+    public int getDatabaseFetchSize() {
+        return databaseFetchSize;
+    }
+
+    public int getRecountConcurrency() {
+        return recountConcurrency;
+    }
+
+    // REST calls per second a recount may make
+    public int getRecountRestBudget() {
+        return recountRestBudget;
+    }
+
+    // How far back entries are re-verified in the background, 0 disables background reconciliation
+    public long getReconcileWindow() {
+        return reconcileWindow;
+    }
+
+    public long getReconcileMinimumInterval() {
+        return reconcileMinimumInterval;
+    }
+
+    public long getReconcileMaximumInterval() {
+        return reconcileMaximumInterval;
+    }
+
+    public int getReconcileBatchSize() {
+        return reconcileBatchSize;
+    }
+
+    public int getRerenderConcurrency() {
+        return rerenderConcurrency;
+    }
+
+    public long getRerenderDebounce() {
+        return rerenderDebounce;
+    }
+
+    public int getMigrationChunkSize() {
+        return migrationChunkSize;
+    }
+
+    public int getMigrationConcurrency() {
+        return migrationConcurrency;
+    }
+
+    public int getStarCounterSize() {
+        return starCounterSize;
+    }
+
+    public long getStarCountReconcileInterval() {
+        return starCountReconcileInterval;
+    }
+
+    public long getReactionDebounce() {
+        return reactionDebounce;
+    }
+
+    public int getMessageCacheSize() {
+        return messageCacheSize;
+    }
+
+    public long getMessageCacheTimeToLive() {
+        return messageCacheTimeToLive;
+    }
+
+    public int getOutboundConcurrency() {
+        return outboundConcurrency;
+    }
+
+    public boolean isLeanCache() {
+        return leanCache;
+    }
+
+    // -1 lets Discord recommend the shard count
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public boolean isShardLeases() {
+        return shardLeases;
+    }
+
+    public long getShardLeaseDuration() {
+        return shardLeaseDuration;
+    }
+
     public String getPrefix() {
         return prefix;
     }
@@ -90,4 +300,9 @@ public class Configuration {
     public long getOwnerId() {
         return ownerId;
     }
+
+    public enum StoreType {
+        POSTGRES,
+        JOURNAL
+    }
 }
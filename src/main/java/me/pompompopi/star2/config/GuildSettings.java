@@ -0,0 +1,14 @@
+package me.pompompopi.star2.config;
+
+import net.dv8tion.jda.api.entities.emoji.Emoji;
+import net.dv8tion.jda.api.entities.emoji.UnicodeEmoji;
+
+public record GuildSettings(long guildId, long starboardChannelId, UnicodeEmoji starEmoji, short minimumStars) {
+    public static GuildSettings of(final long guildId, final long starboardChannelId, final String starEmoji, final short minimumStars) {
+        return new GuildSettings(guildId, starboardChannelId, Emoji.fromUnicode(starEmoji), minimumStars);
+    }
+
+    public boolean isStar(final Emoji emoji) {
+        return emoji.getType() == Emoji.Type.UNICODE && emoji.equals(starEmoji);
+    }
+}
@@ -0,0 +1,88 @@
+package me.pompompopi.star2.config;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+// Looked up on every gateway event, reads go through an immutable open addressing table keyed by primitive guild id
+// so they neither lock nor allocate. Writes are rare and publish a rebuilt table.
+public final class GuildSettingsRegistry {
+    private volatile Table table = Table.build(List.of());
+
+    @Nullable
+    public GuildSettings get(final long guildId) {
+        return table.get(guildId);
+    }
+
+    public synchronized void put(final GuildSettings settings) {
+        final List<GuildSettings> all = new ArrayList<>(table.size + 1);
+        for (final GuildSettings existing : table.values) {
+            if (existing != null && existing.guildId() != settings.guildId())
+                all.add(existing);
+        }
+        all.add(settings);
+        table = Table.build(all);
+    }
+
+    public synchronized void replaceAll(final Collection<GuildSettings> settings) {
+        table = Table.build(settings);
+    }
+
+    public List<GuildSettings> all() {
+        final List<GuildSettings> all = new ArrayList<>();
+        for (final GuildSettings settings : table.values) {
+            if (settings != null)
+                all.add(settings);
+        }
+        return all;
+    }
+
+    public int size() {
+        return table.size;
+    }
+
+    private static final class Table {
+        private final long[] keys;
+        private final GuildSettings[] values;
+        private final int mask;
+        private final int size;
+
+        private Table(final int capacity, final int size) {
+            this.keys = new long[capacity];
+            this.values = new GuildSettings[capacity];
+            this.mask = capacity - 1;
+            this.size = size;
+        }
+
+        private static Table build(final Collection<GuildSettings> settings) {
+            final int capacity = Integer.highestOneBit(Math.max(8, settings.size() * 2 - 1)) << 1;
+            final Table table = new Table(capacity, settings.size());
+            for (final GuildSettings entry : settings) {
+                int index = mix(entry.guildId()) & table.mask;
+                while (table.values[index] != null)
+                    index = (index + 1) & table.mask;
+                table.keys[index] = entry.guildId();
+                table.values[index] = entry;
+            }
+            return table;
+        }
+
+        private static int mix(final long key) {
+            final long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32));
+        }
+
+        @Nullable
+        private GuildSettings get(final long key) {
+            int index = mix(key) & mask;
+            while (values[index] != null) {
+                if (keys[index] == key)
+                    return values[index];
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package me.pompompopi.star2.database;
+
+import me.pompompopi.star2.util.CacheStatistics;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+final class BoardEntryCache {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final Map<Long, Entry> entries;
+    private final long timeToLiveNanos;
+    private final TreeMap<Long, Integer> loadsInFlight = new TreeMap<>();
+    private final Map<Long, Long> invalidatedAt = new HashMap<>();
+    private long invalidatedAllAt = 0;
+    private long modificationCount = 0;
+
+    BoardEntryCache(final int maximumSize, final long timeToLiveMillis) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, Entry> eldest) {
+                return size() > maximumSize;
+            }
+        };
+        this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+    }
+
+    // Returns null on a miss, an empty optional if the message is known not to be on the board
+    synchronized Optional<DatabaseRow> get(final long originalMessageId) {
+        final Entry entry = entries.get(originalMessageId);
+        if (entry == null || System.nanoTime() - entry.created() > timeToLiveNanos) {
+            if (entry != null)
+                entries.remove(originalMessageId);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.row();
+    }
+
+    // Loads take a stamp before querying so a result that raced with a write to the same row is not cached. Writes are
+    // remembered per row only while an older load is in flight, so writes to other rows do not keep the cache empty.
+    synchronized long beginLoad() {
+        loadsInFlight.merge(modificationCount, 1, Integer::sum);
+        return modificationCount;
+    }
+
+    synchronized void endLoad(final long stamp) {
+        loadsInFlight.computeIfPresent(stamp, (key, count) -> count == 1 ? null : count - 1);
+        if (loadsInFlight.isEmpty()) {
+            invalidatedAt.clear();
+        } else if (loadsInFlight.firstKey() > stamp) {
+            final long oldest = loadsInFlight.firstKey();
+            invalidatedAt.values().removeIf(invalidation -> invalidation <= oldest);
+        }
+    }
+
+    synchronized void putIfUnmodified(final long originalMessageId, final Optional<DatabaseRow> row, final long stamp) {
+        if (invalidatedAllAt > stamp || invalidatedAt.getOrDefault(originalMessageId, 0L) > stamp)
+            return;
+        entries.put(originalMessageId, new Entry(row, System.nanoTime()));
+    }
+
+    private void modified(final long originalMessageId) {
+        modificationCount++;
+        if (!loadsInFlight.isEmpty())
+            invalidatedAt.put(originalMessageId, modificationCount);
+    }
+
+    synchronized void put(final long originalMessageId, final Optional<DatabaseRow> row) {
+        modified(originalMessageId);
+        entries.put(originalMessageId, new Entry(row, System.nanoTime()));
+    }
+
+    // Also marks rows that are not cached, a load of the row may be in flight
+    synchronized void update(final long originalMessageId, final UnaryOperator<DatabaseRow> updater) {
+        modified(originalMessageId);
+        final Entry entry = entries.get(originalMessageId);
+        if (entry == null || entry.row().isEmpty())
+            return;
+        entries.put(originalMessageId, new Entry(entry.row().map(updater), entry.created()));
+    }
+
+    synchronized void invalidate(final long originalMessageId) {
+        modified(originalMessageId);
+        entries.remove(originalMessageId);
+    }
+
+    synchronized void invalidateAll() {
+        modificationCount++;
+        invalidatedAllAt = modificationCount;
+        entries.clear();
+    }
+
+    synchronized CacheStatistics statistics() {
+        return new CacheStatistics("Board entry cache", hits.sum(), misses.sum(), entries.size());
+    }
+
+    private record Entry(Optional<DatabaseRow> row, long created) {
+    }
+}
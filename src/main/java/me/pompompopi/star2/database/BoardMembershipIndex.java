@@ -0,0 +1,60 @@
+package me.pompompopi.star2.database;
+
+import me.pompompopi.star2.util.LongMultiset;
+import org.jetbrains.annotations.Nullable;
+
+final class BoardMembershipIndex {
+    private LongMultiset authors = new LongMultiset();
+    private LongMultiset referencedMessages = new LongMultiset();
+
+    synchronized void add(final long authorId, final @Nullable Long referencedMessageId) {
+        authors.add(authorId);
+        if (referencedMessageId != null)
+            referencedMessages.add(referencedMessageId);
+    }
+
+    synchronized void remove(final DatabaseRow row) {
+        remove(row.originalAuthorId(), row.referencedMessageId().orElse(null));
+    }
+
+    synchronized void remove(final long authorId, final @Nullable Long referencedMessageId) {
+        authors.remove(authorId);
+        if (referencedMessageId != null)
+            referencedMessages.remove(referencedMessageId);
+    }
+
+    synchronized void replaceWith(final BoardMembershipIndex other) {
+        synchronized (other) {
+            this.authors = other.authors;
+            this.referencedMessages = other.referencedMessages;
+        }
+    }
+
+    synchronized void replaceAuthor(final long oldAuthorId, final long newAuthorId) {
+        if (authors.remove(oldAuthorId))
+            authors.add(newAuthorId);
+    }
+
+    synchronized void replaceReferencedMessage(final long oldReferencedMessageId, final @Nullable Long newReferencedMessageId) {
+        if (referencedMessages.remove(oldReferencedMessageId) && newReferencedMessageId != null)
+            referencedMessages.add(newReferencedMessageId);
+    }
+
+    synchronized boolean hasAuthor(final long authorId) {
+        return authors.contains(authorId);
+    }
+
+    synchronized boolean hasReferencedMessage(final long referencedMessageId) {
+        return referencedMessages.contains(referencedMessageId);
+    }
+
+    synchronized void clear() {
+        authors.clear();
+        referencedMessages.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Membership index: " + authors.size() + " authors, " + referencedMessages.size() + " referenced messages";
+    }
+}
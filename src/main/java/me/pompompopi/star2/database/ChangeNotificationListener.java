@@ -0,0 +1,110 @@
+package me.pompompopi.star2.database;
+
+import me.pompompopi.star2.Star2;
+import me.pompompopi.star2.util.ExceptionUtil;
+import org.jetbrains.annotations.Nullable;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Listens for the notifications sent by the starboard trigger on a dedicated connection and hands every change made by
+// another instance to the given handler. After (re)connecting, notifications may have been missed, so onResync runs first.
+final class ChangeNotificationListener {
+    static final String CHANNEL = "starboard_changes";
+    private static final int POLL_TIMEOUT_MILLIS = 10000;
+    private final ConnectionPool connectionPool;
+    private final String applicationName;
+    private final ChangeHandler handler;
+    private final Runnable onResync;
+    private final long maximumReconnectDelayMillis;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile @Nullable Connection connection;
+
+    ChangeNotificationListener(final ConnectionPool connectionPool, final String applicationName, final long maximumReconnectDelayMillis, final ChangeHandler handler, final Runnable onResync) {
+        this.connectionPool = connectionPool;
+        this.applicationName = applicationName;
+        this.maximumReconnectDelayMillis = maximumReconnectDelayMillis;
+        this.handler = handler;
+        this.onResync = onResync;
+        this.thread = new Thread(this::run, "star2-change-listener");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void shutdown() {
+        running = false;
+        thread.interrupt();
+        final Connection current = connection;
+        if (current != null)
+            ExceptionUtil.ignore(current::close);
+    }
+
+    private void run() {
+        int attempt = 0;
+        boolean firstConnect = true;
+        while (running) {
+            try (final Connection listenConnection = connectionPool.openUnpooled()) {
+                this.connection = listenConnection;
+                try (final Statement statement = listenConnection.createStatement()) {
+                    statement.execute("LISTEN " + CHANNEL + ";");
+                }
+                if (!firstConnect)
+                    onResync.run();
+                firstConnect = false;
+                attempt = 0;
+                final PGConnection pgConnection = listenConnection.unwrap(PGConnection.class);
+                while (running) {
+                    final PGNotification[] notifications = pgConnection.getNotifications(POLL_TIMEOUT_MILLIS);
+                    if (notifications == null)
+                        continue;
+                    for (final PGNotification notification : notifications)
+                        dispatch(notification.getParameter());
+                }
+            } catch (SQLException e) {
+                if (!running)
+                    return;
+                final long ceiling = Math.min(maximumReconnectDelayMillis, 500L << Math.min(attempt++, 16));
+                final long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+                Star2.LOGGER.warn("Lost starboard change listener connection, reconnecting in {}ms", delay, e);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Payload: operation:message id:author id:referenced message id:old author id:old referenced message id:origin
+    private void dispatch(final String payload) {
+        final String[] parts = payload.split(":", 7);
+        if (parts.length != 7) {
+            Star2.LOGGER.warn("Ignoring malformed starboard change notification {}", payload);
+            return;
+        }
+        if (parts[6].equals(applicationName))
+            return;
+        try {
+            handler.onChange(parts[0], Long.parseLong(parts[1]), parseNullable(parts[2]), parseNullable(parts[3]), parseNullable(parts[4]), parseNullable(parts[5]));
+        } catch (RuntimeException e) {
+            Star2.LOGGER.warn("Failed to apply starboard change notification {}", payload, e);
+        }
+    }
+
+    private static @Nullable Long parseNullable(final String value) {
+        return value.isEmpty() ? null : Long.parseLong(value);
+    }
+
+    @FunctionalInterface
+    interface ChangeHandler {
+        void onChange(final String operation, final long originalMessageId, final @Nullable Long authorId, final @Nullable Long referencedMessageId, final @Nullable Long oldAuthorId, final @Nullable Long oldReferencedMessageId);
+    }
+}
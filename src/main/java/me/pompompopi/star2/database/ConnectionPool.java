@@ -0,0 +1,200 @@
+package me.pompompopi.star2.database;
+
+import me.pompompopi.star2.Star2;
+import me.pompompopi.star2.util.ExceptionUtil;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Properties;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+final class ConnectionPool {
+    private static final long RECONNECT_BASE_DELAY_MILLIS = 500;
+    private final BlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "star2-connection-pool");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean reconnecting = new AtomicBoolean(false);
+    private final Semaphore permits;
+    private final int size;
+    private final String connectionUrl;
+    private final Properties connectionProperties = new Properties();
+    private final int statementCacheSize;
+    private final long acquireTimeoutMillis;
+    private final long maximumReconnectDelayMillis;
+    private volatile boolean available = true;
+    private volatile boolean closed = false;
+
+    ConnectionPool(final String connectionUrl, final String connectionUsername, final String connectionPassword, final String applicationName, final int size, final int statementCacheSize, final long acquireTimeoutMillis, final long keepAliveIntervalMillis, final long maximumReconnectDelayMillis) {
+        if (size < 1)
+            throw new IllegalArgumentException("Connection pool size must be at least 1");
+        this.permits = new Semaphore(size, true);
+        this.size = size;
+        this.connectionUrl = connectionUrl;
+        this.connectionProperties.setProperty("user", connectionUsername);
+        this.connectionProperties.setProperty("password", connectionPassword);
+        // Identifies this instance in change notifications so that it can skip its own
+        this.connectionProperties.setProperty("ApplicationName", applicationName);
+        // Use a server-side prepared statement from the first execution, cached statements are reused for the connection's lifetime
+        this.connectionProperties.setProperty("prepareThreshold", "1");
+        this.statementCacheSize = statementCacheSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.maximumReconnectDelayMillis = maximumReconnectDelayMillis;
+        this.scheduler.scheduleWithFixedDelay(this::keepAlive, keepAliveIntervalMillis, keepAliveIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    <T> T use(final SqlFunction<T> function) throws SQLException {
+        final PooledConnection pooledConnection = acquire();
+        boolean broken = false;
+        try {
+            return function.apply(pooledConnection);
+        } catch (SQLException e) {
+            broken = isConnectionFailure(pooledConnection, e);
+            if (broken)
+                markUnavailable(e);
+            throw e;
+        } finally {
+            release(pooledConnection, broken);
+        }
+    }
+
+    boolean isAvailable() {
+        return available;
+    }
+
+    private PooledConnection acquire() throws SQLException {
+        if (closed)
+            throw new SQLException("Connection pool has been shut down");
+        if (!available)
+            throw new DatabaseUnavailableException();
+        final boolean acquired = ExceptionUtil.wrap(InterruptedException.class, () -> permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS), e -> {
+            Thread.currentThread().interrupt();
+            return new IllegalStateException("Interrupted while waiting for a database connection", e);
+        });
+        if (!acquired)
+            throw new SQLTimeoutException("Timed out after " + acquireTimeoutMillis + "ms waiting for a database connection");
+        try {
+            PooledConnection pooledConnection;
+            while ((pooledConnection = idleConnections.pollFirst()) != null) {
+                if (!pooledConnection.isClosed())
+                    return pooledConnection;
+                pooledConnection.close();
+            }
+            try {
+                return open();
+            } catch (SQLException e) {
+                markUnavailable(e);
+                throw e;
+            }
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private PooledConnection open() throws SQLException {
+        return new PooledConnection(openUnpooled(), statementCacheSize);
+    }
+
+    Connection openUnpooled() throws SQLException {
+        return DriverManager.getConnection(connectionUrl, connectionProperties);
+    }
+
+    private void release(final PooledConnection pooledConnection, final boolean broken) {
+        if (broken || closed || idleConnections.size() >= size) {
+            pooledConnection.close();
+        } else {
+            idleConnections.offerFirst(pooledConnection);
+        }
+        permits.release();
+    }
+
+    // Validates idle connections in the background so that queries never pay for a liveness probe
+    private void keepAlive() {
+        if (!available || closed)
+            return;
+        final int idleCount = idleConnections.size();
+        for (int i = 0; i < idleCount; i++) {
+            if (!permits.tryAcquire())
+                return;
+            try {
+                final PooledConnection pooledConnection = idleConnections.pollLast();
+                if (pooledConnection == null)
+                    return;
+                if (pooledConnection.isValid()) {
+                    idleConnections.offerFirst(pooledConnection);
+                    continue;
+                }
+                pooledConnection.close();
+                markUnavailable(new SQLException("Idle connection failed validation"));
+                return;
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    private void markUnavailable(final Throwable cause) {
+        if (closed || !reconnecting.compareAndSet(false, true))
+            return;
+        available = false;
+        Star2.LOGGER.error("Lost connection to the database, reconnecting in the background", cause);
+        PooledConnection pooledConnection;
+        while ((pooledConnection = idleConnections.pollFirst()) != null)
+            pooledConnection.close();
+        scheduler.execute(() -> reconnect(0));
+    }
+
+    private void reconnect(final int attempt) {
+        if (closed)
+            return;
+        try {
+            final PooledConnection pooledConnection = open();
+            if (!pooledConnection.isValid()) {
+                pooledConnection.close();
+                throw new SQLException("New connection failed validation");
+            }
+            idleConnections.offerFirst(pooledConnection);
+            available = true;
+            reconnecting.set(false);
+            Star2.LOGGER.info("Re-established database connection after {} attempt(s)", attempt + 1);
+        } catch (SQLException e) {
+            // Exponential backoff with full jitter on the upper half, so several instances do not reconnect in lockstep
+            final long ceiling = Math.min(maximumReconnectDelayMillis, RECONNECT_BASE_DELAY_MILLIS << Math.min(attempt, 16));
+            final long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+            Star2.LOGGER.warn("Failed to re-establish database connection (attempt {}), retrying in {}ms", attempt + 1, delay, e);
+            scheduler.schedule(() -> reconnect(attempt + 1), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static boolean isConnectionFailure(final PooledConnection pooledConnection, final SQLException e) {
+        final String sqlState = e.getSQLState();
+        if (sqlState != null && sqlState.startsWith("08"))
+            return true;
+        return pooledConnection.isClosed();
+    }
+
+    void shutdown() {
+        closed = true;
+        scheduler.shutdownNow();
+        PooledConnection pooledConnection;
+        while ((pooledConnection = idleConnections.pollFirst()) != null)
+            pooledConnection.close();
+    }
+
+    @FunctionalInterface
+    interface SqlFunction<T> {
+        T apply(final PooledConnection connection) throws SQLException;
+    }
+}
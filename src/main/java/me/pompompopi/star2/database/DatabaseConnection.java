@@ -2,196 +2,369 @@ package me.pompompopi.star2.database;
 
 import me.pompompopi.star2.Star2;
 import me.pompompopi.star2.config.Configuration;
+import me.pompompopi.star2.config.GuildSettings;
+import me.pompompopi.star2.messages.MessageCache;
 import me.pompompopi.star2.util.ExceptionUtil;
-import me.pompompopi.star2.util.FuturePool;
 import me.pompompopi.star2.util.Tuple;
 import me.pompompopi.star2.wrappers.ExceptionLoggingExecutorService;
-import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.sharding.ShardManager;
 import net.dv8tion.jda.api.entities.Message;
 import org.jetbrains.annotations.Nullable;
 
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
-import java.util.Set;
+import java.util.OptionalLong;
+import java.util.UUID;
 import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
-public final class DatabaseConnection {
-    private final Semaphore connectionSemaphore = new Semaphore(1);
-    private final ExecutorService executorService = new ExceptionLoggingExecutorService(Executors.newSingleThreadExecutor());
-    private final String connectionUrl;
-    private final String connectionUsername;
-    private final String connectionPassword;
-    private Connection databaseConnection;
+public final class DatabaseConnection implements StarboardStore {
+    private static final int STREAM_QUEUED_FETCHES = 2;
+    private final ExecutorService executorService;
+    private final ExecutorService migrationExecutorService = new ExceptionLoggingExecutorService(Executors.newVirtualThreadPerTaskExecutor());
+    private final ConnectionPool connectionPool;
+    private final StarCountWriteBuffer starCountWriteBuffer;
+    private final BoardEntryCache boardEntryCache;
+    private final BoardMembershipIndex boardMembershipIndex = new BoardMembershipIndex();
+    private final List<LongConsumer> remoteChangeListeners = new CopyOnWriteArrayList<>();
+    private final ChangeNotificationListener changeNotificationListener;
+    private final ShardLeaseStore shardLeaseStore;
+    private final int fetchSize;
+    private final int migrationChunkSize;
+    private final int migrationConcurrency;
 
     public DatabaseConnection(final Configuration configuration) throws SQLException, ExecutionException, InterruptedException {
         final StringBuilder urlBuilder = new StringBuilder("jdbc:postgresql://");
         urlBuilder.append(configuration.getDatabaseHost());
         if (configuration.getDatabasePort() != 5432)
-            urlBuilder.append(":5432");
+            urlBuilder.append(":").append(configuration.getDatabasePort());
         urlBuilder.append("/");
-        this.connectionUrl = urlBuilder.toString();
-        this.connectionUsername = configuration.getDatabaseUsername();
-        this.connectionPassword = configuration.getDatabasePassword();
-        this.databaseConnection = this.getDatabaseConnection();
-        this.executorService.invokeAll(Set.of(
-                        () -> this.databaseConnection.prepareStatement("ALTER TABLE IF EXISTS ONLY starboard ADD COLUMN IF NOT EXISTS original_author_id bigint NOT NULL DEFAULT -1;").executeUpdate(),
-                        () -> this.databaseConnection.prepareStatement("ALTER TABLE IF EXISTS ONLY starboard ADD COLUMN IF NOT EXISTS referenced_message_id bigint DEFAULT -1;").executeUpdate(),
-                        () -> this.databaseConnection.prepareStatement("ALTER TABLE IF EXISTS ONLY starboard ADD COLUMN IF NOT EXISTS referenced_author_id bigint DEFAULT NULL;").executeUpdate(),
-                        () -> this.databaseConnection.prepareStatement("CREATE TABLE IF NOT EXISTS starboard (original_message_id bigint NOT NULL PRIMARY KEY, original_channel_id bigint NOT NULL, original_author_id bigint NOT NULL, starboard_message_id bigint NOT NULL UNIQUE, referenced_message_id bigint, referenced_author_id bigint, stars smallint NOT NULL);").executeUpdate())
-                )
-                .getLast().get();
-    }
-
-    private Connection getDatabaseConnection() throws SQLException {
-        return DriverManager.getConnection(this.connectionUrl, this.connectionUsername, this.connectionPassword);
-    }
-
-    public CompletableFuture<Connection> blockForConnection() {
-        return CompletableFuture.supplyAsync(() -> {
-            this.connectionSemaphore.acquireUninterruptibly();
-            boolean closed;
-            try {
-                closed = this.databaseConnection.isClosed();
-            } catch (SQLException e) {
-                closed = true;
+        final int poolSize = configuration.getDatabasePoolSize();
+        final String applicationName = "star2-" + UUID.randomUUID();
+        this.fetchSize = configuration.getDatabaseFetchSize();
+        this.migrationChunkSize = configuration.getMigrationChunkSize();
+        this.migrationConcurrency = configuration.getMigrationConcurrency();
+        // Queries block on the pool's permits rather than on a fixed set of platform threads, so waiting callers cost no carrier
+        this.executorService = new ExceptionLoggingExecutorService(Executors.newVirtualThreadPerTaskExecutor());
+        this.connectionPool = new ConnectionPool(urlBuilder.toString(), configuration.getDatabaseUsername(), configuration.getDatabasePassword(), applicationName, poolSize, configuration.getDatabaseStatementCacheSize(), configuration.getDatabasePoolTimeout(), configuration.getDatabasePoolValidationInterval(), configuration.getDatabaseReconnectMaximumDelay());
+        this.boardEntryCache = new BoardEntryCache(configuration.getBoardEntryCacheSize(), configuration.getBoardEntryCacheTimeToLive());
+        this.starCountWriteBuffer = new StarCountWriteBuffer(this::updateStarsBulk, configuration.getStarCountBufferSize(), configuration.getStarCountFlushInterval());
+        this.executorService.submit(() -> this.connectionPool.use(connection -> {
+            SchemaMigrator.migrate(connection.connection());
+            return null;
+        })).get();
+        this.executorService.submit(() -> this.connectionPool.use(this::loadBoardMembershipIndex)).get();
+        this.changeNotificationListener = new ChangeNotificationListener(this.connectionPool, applicationName, configuration.getDatabaseReconnectMaximumDelay(), this::onRemoteChange, this::resynchronise);
+        this.changeNotificationListener.start();
+        this.shardLeaseStore = new ShardLeaseStore(this.connectionPool, this.executorService, applicationName);
+    }
+
+    @Override
+    public Optional<ShardLeaseStore> getShardLeaseStore() {
+        return Optional.of(this.shardLeaseStore);
+    }
+
+    private Void loadBoardMembershipIndex(final PooledConnection connection) throws SQLException {
+        final BoardMembershipIndex loaded = new BoardMembershipIndex();
+        try (final ResultSet results = connection.prepareStatement("SELECT original_author_id, referenced_message_id FROM starboard;").executeQuery()) {
+            while (results.next()) {
+                final long authorId = results.getLong(1);
+                final long referencedMessageId = results.getLong(2);
+                loaded.add(authorId, results.wasNull() ? null : referencedMessageId);
+            }
+        }
+        this.boardMembershipIndex.replaceWith(loaded);
+        Star2.LOGGER.info("Loaded board membership index ({})", this.boardMembershipIndex);
+        return null;
+    }
+
+    private void onRemoteChange(final String operation, final long originalMessageId, final @Nullable Long authorId, final @Nullable Long referencedMessageId, final @Nullable Long oldAuthorId, final @Nullable Long oldReferencedMessageId) {
+        this.boardEntryCache.invalidate(originalMessageId);
+        if (oldAuthorId != null)
+            this.boardMembershipIndex.remove(oldAuthorId, oldReferencedMessageId);
+        if (authorId != null)
+            this.boardMembershipIndex.add(authorId, referencedMessageId);
+        this.remoteChangeListeners.forEach(listener -> listener.accept(originalMessageId));
+    }
+
+    // Notifications sent while the listener was disconnected are lost, so everything derived from the table is rebuilt
+    private void resynchronise() {
+        this.boardEntryCache.invalidateAll();
+        ExceptionUtil.handleExceptionAndLog(this.withConnection(this::loadBoardMembershipIndex), "board membership index reload");
+        this.remoteChangeListeners.forEach(listener -> listener.accept(-1));
+    }
+
+    @Override
+    public void addRemoteChangeListener(final LongConsumer listener) {
+        this.remoteChangeListeners.add(listener);
+    }
+
+    private static Collection<DatabaseRow> queryAll(final PreparedStatement statement) throws SQLException {
+        try (final ResultSet results = statement.executeQuery()) {
+            return DatabaseRow.all(results, ArrayList::new);
+        }
+    }
+
+    private static Optional<DatabaseRow> queryFirst(final PreparedStatement statement) throws SQLException {
+        try (final ResultSet results = statement.executeQuery()) {
+            if (!results.next())
+                return Optional.empty();
+            return Optional.of(new DatabaseRow(results));
+        }
+    }
+
+    // Star counts still buffered or being written are newer than what a query returns
+    private DatabaseRow withPendingStars(final DatabaseRow row) {
+        return this.starCountWriteBuffer.getPending(row.originalMessageId()).map(row::withStars).orElse(row);
+    }
+
+    private List<DatabaseRow> withPendingStars(final Collection<DatabaseRow> rows) {
+        return rows.stream().map(this::withPendingStars).toList();
+    }
+
+    private <T> CompletableFuture<T> withConnection(final ConnectionPool.SqlFunction<T> function) {
+        return CompletableFuture.supplyAsync(() -> ExceptionUtil.wrap(SQLException.class, () -> this.connectionPool.use(function), CompletionException::new), executorService);
+    }
+
+    @Override
+    public CompletableFuture<Void> performMigration(final ShardManager shardManager, final MessageCache messageCache, final BooleanSupplier seesEveryShard) {
+        // Resolved from the channel cache without any REST calls, rows whose channel is gone keep a null guild
+        final ResumableMigration<GuildUpdate> guildMigration = new ResumableMigration<>("migration-3-guild", "guild_id IS NULL", "UPDATE starboard SET guild_id = ? WHERE original_message_id = ?;", rows -> CompletableFuture.completedFuture(null), row -> CompletableFuture.completedFuture(Optional.ofNullable(shardManager.getTextChannelById(row.originalChannelId())).map(channel -> new GuildUpdate(row.originalMessageId(), channel.getGuild().getIdLong()))), (statement, update) -> {
+            statement.setLong(1, update.guildId());
+            statement.setLong(2, update.originalMessageId());
+        }, update -> this.boardEntryCache.invalidate(update.originalMessageId()));
+        final ResumableMigration<AuthorUpdate> authorMigration = new ResumableMigration<>("migration-1-original-author", "original_author_id = -1", "UPDATE starboard SET original_author_id = ? WHERE original_message_id = ?;", rows -> DatabaseRow.prefetchMessages(rows, messageCache, () -> {}), row -> row.toOriginalMessage(messageCache).thenApply(messageOpt -> messageOpt.map(message -> new AuthorUpdate(message.getIdLong(), message.getAuthor().getIdLong()))), (statement, update) -> {
+            statement.setLong(1, update.authorId());
+            statement.setLong(2, update.originalMessageId());
+        }, update -> {
+            this.boardMembershipIndex.replaceAuthor(-1, update.authorId());
+            this.boardEntryCache.invalidate(update.originalMessageId());
+        });
+        final ResumableMigration<ReferenceUpdate> referenceMigration = new ResumableMigration<>("migration-2-referenced-message", "referenced_message_id = -1", "UPDATE starboard SET referenced_message_id = ?, referenced_author_id = ? WHERE original_message_id = ?;", rows -> DatabaseRow.prefetchMessages(rows, messageCache, () -> {}), row -> row.toOriginalMessage(messageCache).thenApply(originalMessageOpt -> {
+            if (originalMessageOpt.isEmpty()) {
+                Star2.LOGGER.warn("Could not find original message for row");
+                return Optional.empty();
             }
+            final Message originalMessage = originalMessageOpt.get();
+            final @Nullable Message referencedMessage = originalMessage.getReferencedMessage();
+            if (referencedMessage == null)
+                return Optional.of(new ReferenceUpdate(originalMessage.getIdLong(), null, null));
+            return Optional.of(new ReferenceUpdate(originalMessage.getIdLong(), referencedMessage.getIdLong(), referencedMessage.getAuthor().getIdLong()));
+        }), (statement, update) -> {
+            if (update.referencedMessageId() != null) {
+                statement.setLong(1, update.referencedMessageId());
+                statement.setLong(2, update.referencedAuthorId());
+            } else {
+                statement.setNull(1, Types.BIGINT);
+                statement.setNull(2, Types.BIGINT);
+            }
+            statement.setLong(3, update.originalMessageId());
+        }, update -> {
+            this.boardMembershipIndex.replaceReferencedMessage(-1, update.referencedMessageId());
+            this.boardEntryCache.invalidate(update.originalMessageId());
+        });
+        return CompletableFuture.runAsync(() -> ExceptionUtil.wrap(SQLException.class, () -> {
+            guildMigration.run(this.connectionPool, this.migrationChunkSize, this.migrationConcurrency, seesEveryShard);
+            authorMigration.run(this.connectionPool, this.migrationChunkSize, this.migrationConcurrency, seesEveryShard);
+            referenceMigration.run(this.connectionPool, this.migrationChunkSize, this.migrationConcurrency, seesEveryShard);
+        }, CompletionException::new), migrationExecutorService);
+    }
 
-            if (!closed) {
+    // Reads rows through a server-side cursor and hands them over one fetch at a time to a consumer thread, in order.
+    // Only a few fetches are queued, the cursor waits once the consumer falls behind so memory stays bounded.
+    private CompletableFuture<Void> streamRows(final String sql, final Consumer<DatabaseRow> consumer) {
+        final BlockingQueue<List<DatabaseRow>> handoff = new ArrayBlockingQueue<>(STREAM_QUEUED_FETCHES);
+        final List<DatabaseRow> end = new ArrayList<>(0);
+        final CompletableFuture<Void> consumed = new CompletableFuture<>();
+        Thread.ofVirtual().name("star2-row-stream").start(() -> {
+            // A failed consumer keeps draining so the cursor is never left waiting on a full queue
+            List<DatabaseRow> batch;
+            while ((batch = takeUninterruptibly(handoff)) != end) {
+                if (consumed.isDone())
+                    continue;
                 try {
-                    this.databaseConnection.prepareCall(";").execute();
-                } catch (SQLException e) {
-                    closed = true;
+                    batch.forEach(consumer);
+                } catch (RuntimeException e) {
+                    consumed.completeExceptionally(e);
                 }
             }
-
-            if (closed) {
-                for (int i = 0; i < 50; i++) {
-                    ExceptionUtil.wrap(InterruptedException.class, () -> Thread.sleep(5000), CompletionException::new);
-                    final Connection connection;
-                    try {
-                        connection = this.getDatabaseConnection();
-                    } catch (SQLException e) {
-                        Star2.LOGGER.error("Failed to re-establish database connection", e);
-                        continue;
+            consumed.complete(null);
+        });
+        return this.withConnection(connection -> {
+            final Connection rawConnection = connection.connection();
+            rawConnection.setAutoCommit(false);
+            try {
+                final PreparedStatement statement = connection.prepareStatement(sql);
+                statement.setFetchSize(this.fetchSize);
+                try (final ResultSet results = statement.executeQuery()) {
+                    List<DatabaseRow> batch = new ArrayList<>(this.fetchSize);
+                    while (results.next() && !consumed.isDone()) {
+                        batch.add(this.withPendingStars(new DatabaseRow(results)));
+                        if (batch.size() < this.fetchSize)
+                            continue;
+                        putUninterruptibly(handoff, batch);
+                        batch = new ArrayList<>(this.fetchSize);
                     }
-                    this.databaseConnection = connection;
-                    this.connectionSemaphore.release();
-                    return this.databaseConnection;
+                    if (!batch.isEmpty())
+                        putUninterruptibly(handoff, batch);
                 }
-            } else {
-                this.connectionSemaphore.release();
-                return this.databaseConnection;
+                rawConnection.commit();
+            } catch (SQLException | RuntimeException e) {
+                ExceptionUtil.ignore(rawConnection::rollback);
+                throw e;
+            } finally {
+                putUninterruptibly(handoff, end);
+                rawConnection.setAutoCommit(true);
             }
+            return null;
+        }).handle((ignored, t) -> {
+            // Stops the consumer thread when the query never ran, it is a no-op once the cursor has ended the stream
+            handoff.offer(end);
+            return t == null ? consumed : CompletableFuture.<Void>failedFuture(t);
+        }).thenCompose(result -> result);
+    }
 
-            throw new CompletionException(new RuntimeException("Failed to retrieve connection in time"));
-        });
+    private static <T> void putUninterruptibly(final BlockingQueue<T> queue, final T element) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(element);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
     }
 
-    public CompletableFuture<Void> performMigration(final JDA jda) {
-        return CompletableFuture.allOf(this.blockForConnection().thenAcceptAsync(connection -> ExceptionUtil.wrap(SQLException.class, () -> {
-            Star2.LOGGER.info("Running database migration #1");
-            final ResultSet results = connection.prepareStatement("SELECT * FROM starboard WHERE original_author_id = -1;").executeQuery();
-            final FuturePool pool = new FuturePool();
-            while (results.next()) {
-                final DatabaseRow row = new DatabaseRow(results);
-                pool.poolRun(() -> row.toOriginalMessage(jda).thenAcceptAsync(messageOpt -> {
-                    if (messageOpt.isEmpty())
-                        return;
-                    final Message message = messageOpt.get();
-                    final long originalMessageId = message.getIdLong();
-                    final long authorId = message.getAuthor().getIdLong();
-                    executorService.submit(() -> ExceptionUtil.wrap(SQLException.class, () -> {
-                        final PreparedStatement statement = connection.prepareStatement("UPDATE starboard SET original_author_id = ? WHERE original_message_id = ?;");
-                        statement.setLong(1, authorId);
-                        statement.setLong(2, originalMessageId);
-                        statement.executeUpdate();
-                        Star2.LOGGER.info("Added author id column value ({}) for {}", authorId, originalMessageId);
-                    }, e -> new IllegalStateException("Exception migrating starboard entry", e)));
-                }));
+    private static <T> T takeUninterruptibly(final BlockingQueue<T> queue) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
             }
-            pool.join();
-            Star2.LOGGER.info("Finished database migration #1");
-        }, CompletionException::new), executorService), this.blockForConnection().thenAcceptAsync(connection -> ExceptionUtil.wrap(SQLException.class, () -> {
-            Star2.LOGGER.info("Running database migration #2");
-            final ResultSet results = connection.prepareStatement("SELECT * FROM starboard WHERE referenced_message_id = -1;").executeQuery();
-            final FuturePool pool = new FuturePool();
-            while (results.next()) {
-                final DatabaseRow row = new DatabaseRow(results);
-                pool.poolRun(() -> row.toOriginalMessage(jda).thenAcceptAsync(originalMessageOpt -> {
-                    if (originalMessageOpt.isEmpty()) {
-                        Star2.LOGGER.warn("Could not find original message for row");
-                        return;
-                    }
-                    final Message originalMessage = originalMessageOpt.get();
-                    final long originalMessageId = originalMessage.getIdLong();
-                    final @Nullable Message referencedMessage = originalMessage.getReferencedMessage();
-                    if (referencedMessage == null) {
-                        executorService.submit(() -> ExceptionUtil.wrap(SQLException.class, () -> {
-                            final PreparedStatement statement = connection.prepareStatement("UPDATE starboard SET referenced_message_id = NULL WHERE original_message_id = ?;");
-                            statement.setLong(1, originalMessageId);
-                            statement.executeUpdate();
-                            Star2.LOGGER.info("Nulled out referenced message id column value for {} as it doesn't reply to anything", originalMessageId);
-                        }, e -> new IllegalStateException("Exception nulling referenced message id", e)));
-                        return;
-                    }
-                    final long referencedMessageId = referencedMessage.getIdLong();
-                    final long referencedAuthorId = referencedMessage.getAuthor().getIdLong();
-                    executorService.submit(() -> ExceptionUtil.wrap(SQLException.class, () -> {
-                        final PreparedStatement statement = connection.prepareStatement("UPDATE starboard SET referenced_message_id = ?, referenced_author_id = ? WHERE original_message_id = ?;");
-                        statement.setLong(1, referencedMessageId);
-                        statement.setLong(2, referencedAuthorId);
-                        statement.setLong(3, originalMessageId);
-                        statement.executeUpdate();
-                        Star2.LOGGER.info("Added reference information to {}, reference message id: {}, reference author id: {}", originalMessageId, referencedMessageId, referencedAuthorId);
-                    }, e -> new IllegalStateException("Exception adding referenced message id and referenced author id", e)));
-                }));
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> forEachRow(final Consumer<DatabaseRow> consumer) {
+        return this.streamRows("SELECT * FROM starboard ORDER BY original_message_id;", consumer);
+    }
+
+    @Override
+    public CompletableFuture<List<DatabaseRow>> getBoardEntriesAfter(final long originalMessageId, final int limit) {
+        return this.withConnection(connection -> {
+            final PreparedStatement statement = connection.prepareStatement("SELECT * FROM starboard WHERE original_message_id > ? ORDER BY original_message_id LIMIT ?;");
+            statement.setLong(1, originalMessageId);
+            statement.setInt(2, limit);
+            return this.withPendingStars(queryAll(statement));
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> countBoardEntriesAfter(final long originalMessageId) {
+        return this.withConnection(connection -> {
+            final PreparedStatement statement = connection.prepareStatement("SELECT count(*) FROM starboard WHERE original_message_id > ?;");
+            statement.setLong(1, originalMessageId);
+            try (final ResultSet results = statement.executeQuery()) {
+                results.next();
+                return results.getLong(1);
             }
-            pool.join();
-            Star2.LOGGER.info("Finished database migration #2");
-        }, CompletionException::new), executorService));
+        });
+    }
+
+    @Override
+    public CompletableFuture<OptionalLong> loadJobCheckpoint(final String job) {
+        return this.withConnection(connection -> {
+            final long lastKey = JobCheckpoints.load(connection, job, -1);
+            return lastKey == -1 ? OptionalLong.empty() : OptionalLong.of(lastKey);
+        });
     }
 
+    @Override
+    public CompletableFuture<Void> storeJobCheckpoint(final String job, final long lastKey) {
+        return this.withConnection(connection -> {
+            JobCheckpoints.store(connection, job, lastKey);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> clearJobCheckpoint(final String job) {
+        return this.withConnection(connection -> {
+            JobCheckpoints.clear(connection, job);
+            return null;
+        });
+    }
+
+    @Override
     public void shutdown() {
-        ExceptionUtil.ignore(this.databaseConnection::commit);
-        ExceptionUtil.ignore(this.databaseConnection::close);
+        this.changeNotificationListener.shutdown();
+        this.migrationExecutorService.shutdownNow();
+        this.starCountWriteBuffer.shutdown();
+        this.executorService.shutdown();
+        ExceptionUtil.ignore(() -> this.executorService.awaitTermination(10, TimeUnit.SECONDS));
+        this.connectionPool.shutdown();
     }
 
+    @Override
     public CompletableFuture<Void> updateStars(final long originalMessageId, final short newStarCount) {
-        return this.blockForConnection().thenAcceptAsync(connection -> ExceptionUtil.wrap(SQLException.class, () -> {
-            final PreparedStatement statement = connection.prepareStatement("UPDATE starboard SET stars = ? WHERE original_message_id = ?;");
-            statement.setShort(1, newStarCount);
-            statement.setLong(2, originalMessageId);
-            statement.executeUpdate();
-        }, CompletionException::new), executorService);
+        this.starCountWriteBuffer.put(originalMessageId, newStarCount);
+        this.boardEntryCache.update(originalMessageId, row -> row.withStars(newStarCount));
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> flushStarUpdates() {
+        return this.starCountWriteBuffer.flush();
     }
 
     public CompletableFuture<Void> updateStarsBulk(final Collection<Tuple<Short, Long>> updates) {
-        return this.blockForConnection().thenAcceptAsync(connection -> ExceptionUtil.wrap(SQLException.class, () -> {
+        return this.withConnection(connection -> {
             final PreparedStatement statement = connection.prepareStatement("UPDATE starboard SET stars = ? WHERE original_message_id = ?;");
             for (final Tuple<Short, Long> update : updates) {
                 statement.setShort(1, update.first());
                 statement.setLong(2, update.second());
                 statement.addBatch();
             }
-        }, CompletionException::new), executorService);
+            statement.executeBatch();
+            return null;
+        });
     }
 
+    @Override
     public CompletableFuture<Optional<DatabaseRow>> removeBoardEntry(final long originalMessageId) {
-        return this.blockForConnection().thenApplyAsync(connection -> ExceptionUtil.wrap(SQLException.class, () -> {
+        return this.withConnection(connection -> {
+            this.starCountWriteBuffer.discard(originalMessageId);
             final PreparedStatement statement = connection.prepareStatement("DELETE FROM starboard WHERE original_message_id = ? RETURNING *;");
             statement.setLong(1, originalMessageId);
-            final ResultSet results = statement.executeQuery();
-            if (!results.next())
-                return Optional.empty();
-            return Optional.of(new DatabaseRow(results));
-        }, CompletionException::new), executorService);
+            final Optional<DatabaseRow> removed = queryFirst(statement);
+            removed.ifPresent(this.boardMembershipIndex::remove);
+            this.boardEntryCache.put(originalMessageId, Optional.empty());
+            return removed;
+        });
     }
 
-    public CompletableFuture<Void> addBoardEntry(final long originalMessageId, final long originalChannelId, final long originalAuthorId, final long starboardMessageId, final @Nullable Long referencedMessageId, final @Nullable Long referencedAuthorId, final short stars) {
-        return this.blockForConnection().thenAcceptAsync(connection -> ExceptionUtil.wrap(SQLException.class, () -> {
-            final PreparedStatement statement = connection.prepareStatement("INSERT INTO starboard (original_message_id, original_channel_id, original_author_id, starboard_message_id, referenced_message_id, referenced_author_id, stars) VALUES (?, ?, ?, ?, ?, ?, ?);");
+    @Override
+    public CompletableFuture<Boolean> addBoardEntry(final long guildId, final long originalMessageId, final long originalChannelId, final long originalAuthorId, final long starboardMessageId, final @Nullable Long referencedMessageId, final @Nullable Long referencedAuthorId, final short stars, final @Nullable ShardLeaseStore.Fence fence) {
+        return this.withConnection(connection -> {
+            // The lease is checked by the insert itself, a takeover after a separate check could not be noticed
+            final PreparedStatement statement = connection.prepareStatement(fence == null
+                    ? "INSERT INTO starboard (original_message_id, original_channel_id, original_author_id, starboard_message_id, referenced_message_id, referenced_author_id, stars, guild_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?);"
+                    : "INSERT INTO starboard (original_message_id, original_channel_id, original_author_id, starboard_message_id, referenced_message_id, referenced_author_id, stars, guild_id) SELECT ?, ?, ?, ?, ?, ?, ?, ? WHERE EXISTS (SELECT 1 FROM shard_lease WHERE shard_id = ? AND token = ? AND expires_at > now());");
             statement.setLong(1, originalMessageId);
             statement.setLong(2, originalChannelId);
             statement.setLong(3, originalAuthorId);
@@ -207,58 +380,125 @@ public final class DatabaseConnection {
                 statement.setNull(6, Types.BIGINT);
             }
             statement.setShort(7, stars);
-            statement.executeUpdate();
-        }, CompletionException::new), executorService);
+            statement.setLong(8, guildId);
+            if (fence != null) {
+                statement.setInt(9, fence.shardId());
+                statement.setLong(10, fence.token());
+            }
+            if (statement.executeUpdate() == 0)
+                return false;
+            this.boardMembershipIndex.add(originalAuthorId, referencedMessageId);
+            this.boardEntryCache.put(originalMessageId, Optional.of(new DatabaseRow(guildId, originalMessageId, originalChannelId, originalAuthorId, starboardMessageId, Optional.ofNullable(referencedMessageId), Optional.ofNullable(referencedAuthorId), stars)));
+            return true;
+        });
     }
 
+    @Override
     public CompletableFuture<Optional<DatabaseRow>> getBoardEntry(final long originalMessageId) {
-        return this.blockForConnection().thenApplyAsync(connection -> ExceptionUtil.wrap(SQLException.class, () -> {
+        final Optional<DatabaseRow> cached = this.boardEntryCache.get(originalMessageId);
+        if (cached != null)
+            return CompletableFuture.completedFuture(cached);
+        final long stamp = this.boardEntryCache.beginLoad();
+        return this.withConnection(connection -> {
+            // A count that was buffered before the query but committed while it ran may be missing from its result
+            final Optional<Short> pendingBefore = this.starCountWriteBuffer.getPending(originalMessageId);
             final PreparedStatement statement = connection.prepareStatement("SELECT * FROM starboard WHERE original_message_id = ?;");
             statement.setLong(1, originalMessageId);
-            final ResultSet results = statement.executeQuery();
-            if (!results.next())
-                return Optional.empty();
-            return Optional.of(new DatabaseRow(results));
-        }, CompletionException::new), executorService);
+            final Optional<DatabaseRow> row = queryFirst(statement).map(found -> pendingBefore.map(found::withStars).orElse(found)).map(this::withPendingStars);
+            this.boardEntryCache.putIfUnmodified(originalMessageId, row, stamp);
+            return row;
+        }).whenComplete((row, t) -> this.boardEntryCache.endLoad(stamp));
+    }
+
+    @Override
+    public List<String> describeStatistics() {
+        return List.of(
+                "Database: " + (this.connectionPool.isAvailable() ? "available" : "unavailable, reconnecting"),
+                this.boardEntryCache.statistics().toString(),
+                this.boardMembershipIndex.toString()
+        );
     }
 
+    @Override
     public CompletableFuture<Collection<DatabaseRow>> getStarboardsInReferenceTo(final long referencedMessageId) {
-        return this.blockForConnection().thenApplyAsync(connection -> ExceptionUtil.wrap(SQLException.class, () -> {
+        if (!this.boardMembershipIndex.hasReferencedMessage(referencedMessageId))
+            return CompletableFuture.completedFuture(List.of());
+        return this.withConnection(connection -> {
             final PreparedStatement statement = connection.prepareStatement("SELECT * FROM starboard WHERE referenced_message_id = ?;");
             statement.setLong(1, referencedMessageId);
-            return DatabaseRow.all(statement.executeQuery(), ArrayList::new);
-        }, CompletionException::new), executorService);
+            return this.withPendingStars(queryAll(statement));
+        });
     }
 
+    @Override
     public CompletableFuture<Collection<DatabaseRow>> getUserBoardEntries(final long userId) {
-        return this.blockForConnection().thenApplyAsync(connection -> ExceptionUtil.wrap(SQLException.class, () -> {
+        return this.withConnection(connection -> {
             final PreparedStatement statement = connection.prepareStatement("SELECT * FROM starboard WHERE original_author_id = ?;");
             statement.setLong(1, userId);
-            return DatabaseRow.all(statement.executeQuery(), ArrayList::new);
-        }, CompletionException::new), executorService);
-    }
-
-    public CompletableFuture<Collection<DatabaseRow>> getAllRows() {
-        return this.blockForConnection().thenApplyAsync(connection -> ExceptionUtil.wrap(SQLException.class, () -> DatabaseRow.all(connection.prepareStatement("SELECT * FROM starboard;").executeQuery(), ArrayList::new), CompletionException::new), executorService);
+            return this.withPendingStars(queryAll(statement));
+        });
     }
 
+    @Override
     public CompletableFuture<Boolean> userHasBoardEntry(final long userId) {
-        return this.blockForConnection().thenApplyAsync(connection -> ExceptionUtil.wrap(SQLException.class, () -> {
-            final PreparedStatement statement = connection.prepareStatement("SELECT * FROM starboard WHERE original_author_id = ? LIMIT 1;");
-            statement.setLong(1, userId);
-            return statement.executeQuery().next();
-        }, CompletionException::new), executorService);
+        return CompletableFuture.completedFuture(this.boardMembershipIndex.hasAuthor(userId));
     }
 
+    @Override
     public CompletableFuture<Collection<DatabaseRow>> removeBoardEntriesInChannel(final long channelId) {
-        return this.blockForConnection().thenApplyAsync(connection -> ExceptionUtil.wrap(SQLException.class, () -> {
-            final PreparedStatement statement = connection.prepareStatement("DELETE FROM starboard WHERE original_channel_id = ? RETURNING *;");
-            statement.setLong(1, channelId);
-            return DatabaseRow.all(statement.executeQuery(), ArrayList::new);
-        }, CompletionException::new), executorService);
+        return this.removeBoardEntriesWhere("original_channel_id", channelId);
+    }
+
+    @Override
+    public CompletableFuture<Collection<DatabaseRow>> removeGuildBoardEntries(final long guildId) {
+        return this.removeBoardEntriesWhere("guild_id", guildId);
+    }
+
+    private CompletableFuture<Collection<DatabaseRow>> removeBoardEntriesWhere(final String column, final long value) {
+        return this.withConnection(connection -> {
+            final PreparedStatement statement = connection.prepareStatement("DELETE FROM starboard WHERE " + column + " = ? RETURNING *;");
+            statement.setLong(1, value);
+            final Collection<DatabaseRow> removed = queryAll(statement);
+            for (final DatabaseRow row : removed) {
+                this.starCountWriteBuffer.discard(row.originalMessageId());
+                this.boardMembershipIndex.remove(row);
+                this.boardEntryCache.put(row.originalMessageId(), Optional.empty());
+            }
+            return removed;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Collection<GuildSettings>> loadGuildSettings() {
+        return this.withConnection(connection -> {
+            final List<GuildSettings> settings = new ArrayList<>();
+            try (final ResultSet results = connection.prepareStatement("SELECT * FROM guild_config;").executeQuery()) {
+                while (results.next())
+                    settings.add(GuildSettings.of(results.getLong("guild_id"), results.getLong("starboard_channel_id"), results.getString("emoji"), results.getShort("minimum_stars")));
+            }
+            return settings;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> saveGuildSettings(final GuildSettings settings) {
+        return this.withConnection(connection -> {
+            final PreparedStatement statement = connection.prepareStatement("INSERT INTO guild_config (guild_id, starboard_channel_id, emoji, minimum_stars) VALUES (?, ?, ?, ?) ON CONFLICT (guild_id) DO UPDATE SET starboard_channel_id = excluded.starboard_channel_id, emoji = excluded.emoji, minimum_stars = excluded.minimum_stars;");
+            statement.setLong(1, settings.guildId());
+            statement.setLong(2, settings.starboardChannelId());
+            statement.setString(3, settings.starEmoji().getName());
+            statement.setShort(4, settings.minimumStars());
+            statement.executeUpdate();
+            return null;
+        });
+    }
+
+    private record GuildUpdate(long originalMessageId, long guildId) {
+    }
+
+    private record AuthorUpdate(long originalMessageId, long authorId) {
     }
 
-    public CompletableFuture<Void> removeAllBoardEntries() {
-        return this.blockForConnection().thenAcceptAsync(connection -> ExceptionUtil.wrap(SQLException.class, () -> connection.prepareStatement("DELETE FROM starboard;").executeUpdate(), CompletionException::new), executorService);
+    private record ReferenceUpdate(long originalMessageId, @Nullable Long referencedMessageId, @Nullable Long referencedAuthorId) {
     }
 }
@@ -1,25 +1,27 @@
 package me.pompompopi.star2.database;
 
-import me.pompompopi.star2.util.ExceptionUtil;
+import me.pompompopi.star2.messages.MessageCache;
 import me.pompompopi.star2.util.NullableUtil;
-import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.entities.Message;
-import net.dv8tion.jda.api.entities.channel.concrete.TextChannel;
-import net.dv8tion.jda.api.exceptions.RateLimitedException;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.CompletionException;
 import java.util.function.Supplier;
 
-public record DatabaseRow(long originalMessageId, long originalChannelId, long originalAuthorId,
+// A guild id of 0 marks a row written before rows were keyed by guild whose guild could not be resolved yet
+public record DatabaseRow(long guildId, long originalMessageId, long originalChannelId, long originalAuthorId,
                           long starboardMessageId, Optional<Long> referencedMessageId,
                           Optional<Long> referencedAuthorId, short stars) {
     public DatabaseRow(final ResultSet resultSet) throws SQLException {
         this(
+                resultSet.getLong("guild_id"),
                 resultSet.getLong("original_message_id"),
                 resultSet.getLong("original_channel_id"),
                 resultSet.getLong("original_author_id"),
@@ -37,32 +39,32 @@ public record DatabaseRow(long originalMessageId, long originalChannelId, long o
         return databaseRows;
     }
 
-    public CompletableFuture<Optional<Message>> toStarboardMessage(final JDA jda, final long starboardChannelId) {
-        return CompletableFuture.supplyAsync(() -> ExceptionUtil.wrap(RateLimitedException.class, () -> {
-            final TextChannel textChannel = jda.getTextChannelById(starboardChannelId);
-            if (textChannel == null)
-                return Optional.empty();
-            return Optional.of(textChannel.retrieveMessageById(starboardMessageId).complete(true));
-        }, CompletionException::new));
+    // Warms the message cache with the original and referenced messages of many rows using batched history requests
+    public static CompletableFuture<Void> prefetchMessages(final Collection<DatabaseRow> rows, final MessageCache messageCache, final Runnable beforeRequest) {
+        final Map<Long, List<Long>> messageIdsByChannel = new HashMap<>();
+        for (final DatabaseRow row : rows) {
+            final List<Long> messageIds = messageIdsByChannel.computeIfAbsent(row.originalChannelId(), ignored -> new ArrayList<>());
+            messageIds.add(row.originalMessageId());
+            row.referencedMessageId().ifPresent(messageIds::add);
+        }
+        return CompletableFuture.allOf(messageIdsByChannel.entrySet().stream().map(entry -> messageCache.prefetch(entry.getKey(), entry.getValue(), beforeRequest)).toArray(CompletableFuture[]::new));
     }
 
-    public CompletableFuture<Optional<Message>> toOriginalMessage(final JDA jda) {
-        return CompletableFuture.supplyAsync(() -> ExceptionUtil.wrap(RateLimitedException.class, () -> {
-            final TextChannel textChannel = jda.getTextChannelById(originalChannelId);
-            if (textChannel == null)
-                return Optional.empty();
-            return Optional.of(textChannel.retrieveMessageById(originalMessageId).complete(true));
-        }, CompletionException::new));
+    public DatabaseRow withStars(final short stars) {
+        return new DatabaseRow(guildId, originalMessageId, originalChannelId, originalAuthorId, starboardMessageId, referencedMessageId, referencedAuthorId, stars);
     }
 
-    public CompletableFuture<Optional<Message>> toReferencedMessage(final JDA jda) {
-        return CompletableFuture.supplyAsync(() -> ExceptionUtil.wrap(RateLimitedException.class, () -> {
-            if (referencedMessageId.isEmpty())
-                return Optional.empty();
-            final TextChannel textChannel = jda.getTextChannelById(originalChannelId);
-            if (textChannel == null)
-                return Optional.empty();
-            return Optional.of(textChannel.retrieveMessageById(referencedMessageId.get()).complete(true));
-        }, CompletionException::new));
+    public CompletableFuture<Optional<Message>> toStarboardMessage(final long starboardChannelId, final MessageCache messageCache) {
+        return messageCache.retrieve(starboardChannelId, starboardMessageId);
+    }
+
+    public CompletableFuture<Optional<Message>> toOriginalMessage(final MessageCache messageCache) {
+        return messageCache.retrieve(originalChannelId, originalMessageId);
+    }
+
+    public CompletableFuture<Optional<Message>> toReferencedMessage(final MessageCache messageCache) {
+        if (referencedMessageId.isEmpty())
+            return CompletableFuture.completedFuture(Optional.empty());
+        return messageCache.retrieve(originalChannelId, referencedMessageId.get());
     }
 }
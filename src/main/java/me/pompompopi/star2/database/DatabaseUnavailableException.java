@@ -0,0 +1,9 @@
+package me.pompompopi.star2.database;
+
+import java.sql.SQLTransientConnectionException;
+
+public final class DatabaseUnavailableException extends SQLTransientConnectionException {
+    public DatabaseUnavailableException() {
+        super("The database is currently unavailable, a reconnect is in progress in the background", "08001");
+    }
+}
@@ -0,0 +1,32 @@
+package me.pompompopi.star2.database;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+final class JobCheckpoints {
+    private JobCheckpoints() {
+
+    }
+
+    static long load(final PooledConnection connection, final String job, final long defaultKey) throws SQLException {
+        final PreparedStatement statement = connection.prepareStatement("SELECT last_key FROM job_checkpoint WHERE job = ?;");
+        statement.setString(1, job);
+        try (final ResultSet results = statement.executeQuery()) {
+            return results.next() ? results.getLong(1) : defaultKey;
+        }
+    }
+
+    static void store(final PooledConnection connection, final String job, final long lastKey) throws SQLException {
+        final PreparedStatement statement = connection.prepareStatement("INSERT INTO job_checkpoint (job, last_key) VALUES (?, ?) ON CONFLICT (job) DO UPDATE SET last_key = excluded.last_key, updated_at = now();");
+        statement.setString(1, job);
+        statement.setLong(2, lastKey);
+        statement.executeUpdate();
+    }
+
+    static void clear(final PooledConnection connection, final String job) throws SQLException {
+        final PreparedStatement statement = connection.prepareStatement("DELETE FROM job_checkpoint WHERE job = ?;");
+        statement.setString(1, job);
+        statement.executeUpdate();
+    }
+}
@@ -0,0 +1,432 @@
+package me.pompompopi.star2.database;
+
+import me.pompompopi.star2.Star2;
+import me.pompompopi.star2.config.Configuration;
+import me.pompompopi.star2.config.GuildSettings;
+import me.pompompopi.star2.util.ExceptionUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+// Embedded append-only store of fixed-width records in a memory-mapped file, every row is also held in memory
+// and the journal is only read back on startup. Superseded records are dropped by periodic compaction.
+public final class JournalStarboardStore implements StarboardStore {
+    private static final int MAGIC = 0x53324A4C;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 64;
+    // Version 1 records have no guild id, they are read on startup and the journal is compacted straight away
+    private static final int LEGACY_RECORD_SIZE = 56;
+    private static final long INITIAL_CAPACITY = HEADER_SIZE + RECORD_SIZE * 16384L;
+    private static final int MAXIMUM_EMOJI_BYTES = 39;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_DELETE = 2;
+    private static final byte RECORD_GUILD_SETTINGS = 3;
+    private static final byte FLAG_REFERENCED_MESSAGE = 1;
+    private static final byte FLAG_REFERENCED_AUTHOR = 1 << 1;
+    // Ordered by original message id so paged reads start from the key instead of scanning every row
+    private final NavigableMap<Long, DatabaseRow> rows = new TreeMap<>();
+    private final Map<Long, GuildSettings> guildSettings = new HashMap<>();
+    private final BoardMembershipIndex boardMembershipIndex = new BoardMembershipIndex();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "star2-journal");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Path path;
+    private final Path checkpointPath;
+    private final Properties checkpoints = new Properties();
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int writePosition;
+    private int recordCount;
+
+    public JournalStarboardStore(final Configuration configuration) throws IOException {
+        this(configuration.getJournalPath(), configuration.getJournalCompactionInterval());
+    }
+
+    JournalStarboardStore(final Path path, final long compactionInterval) throws IOException {
+        this.path = path;
+        // Job checkpoints change rarely and are not rows, they are kept in a small properties file beside the journal
+        this.checkpointPath = path.resolveSibling(path.getFileName() + ".jobs");
+        if (Files.exists(checkpointPath)) {
+            try (final Reader reader = Files.newBufferedReader(checkpointPath)) {
+                checkpoints.load(reader);
+            }
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final long size = channel.size();
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, INITIAL_CAPACITY));
+        final int version;
+        if (size == 0) {
+            writeHeader(buffer);
+            version = VERSION;
+        } else {
+            version = buffer.getInt(4);
+            if (buffer.getInt(0) != MAGIC || (version != VERSION && version != 1))
+                throw new IOException(path + " is not a version " + VERSION + " star2 journal");
+        }
+        replay(version == VERSION ? RECORD_SIZE : LEGACY_RECORD_SIZE);
+        Star2.LOGGER.info("Loaded {} starboard entries from {} journal records in {}", rows.size(), recordCount, path);
+        if (version != VERSION)
+            compact();
+        this.scheduler.scheduleWithFixedDelay(() -> ExceptionUtil.ignore(this::force), 1, 1, TimeUnit.SECONDS);
+        this.scheduler.scheduleWithFixedDelay(this::compactIfWorthwhile, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private static void writeHeader(final MappedByteBuffer buffer) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(8, 0);
+    }
+
+    private void replay(final int recordSize) {
+        int position = HEADER_SIZE;
+        boolean torn = false;
+        while (position + recordSize <= buffer.capacity()) {
+            final byte type = buffer.get(position);
+            if (type == 0)
+                break;
+            if (checksum(buffer, position, recordSize) != buffer.getInt(position + recordSize - Integer.BYTES)) {
+                Star2.LOGGER.warn("Journal record at offset {} of {} is torn, discarding it and everything after it", position, path);
+                torn = true;
+                break;
+            }
+            if (type == RECORD_GUILD_SETTINGS) {
+                final GuildSettings settings = readGuildSettings(position);
+                guildSettings.put(settings.guildId(), settings);
+                position += recordSize;
+                recordCount++;
+                continue;
+            }
+            final DatabaseRow row = readRow(position, recordSize);
+            if (type == RECORD_PUT) {
+                final DatabaseRow previous = rows.put(row.originalMessageId(), row);
+                if (previous != null)
+                    boardMembershipIndex.remove(previous);
+                boardMembershipIndex.add(row.originalAuthorId(), row.referencedMessageId().orElse(null));
+            } else {
+                final DatabaseRow previous = rows.remove(row.originalMessageId());
+                if (previous != null)
+                    boardMembershipIndex.remove(previous);
+            }
+            position += recordSize;
+            recordCount++;
+        }
+        this.writePosition = position;
+        // Pages are not flushed in order, so anything behind a torn record is cleared to keep it from being replayed later
+        if (torn) {
+            for (int i = position; i < buffer.capacity(); i++)
+                buffer.put(i, (byte) 0);
+        }
+    }
+
+    private DatabaseRow readRow(final int position, final int recordSize) {
+        final byte flags = buffer.get(position + 1);
+        return new DatabaseRow(
+                recordSize == RECORD_SIZE ? buffer.getLong(position + 52) : 0,
+                buffer.getLong(position + 4),
+                buffer.getLong(position + 12),
+                buffer.getLong(position + 20),
+                buffer.getLong(position + 28),
+                (flags & FLAG_REFERENCED_MESSAGE) != 0 ? Optional.of(buffer.getLong(position + 36)) : Optional.empty(),
+                (flags & FLAG_REFERENCED_AUTHOR) != 0 ? Optional.of(buffer.getLong(position + 44)) : Optional.empty(),
+                buffer.getShort(position + 2)
+        );
+    }
+
+    private GuildSettings readGuildSettings(final int position) {
+        final byte[] emoji = new byte[buffer.get(position + 20)];
+        buffer.get(position + 21, emoji);
+        return GuildSettings.of(buffer.getLong(position + 4), buffer.getLong(position + 12), new String(emoji, StandardCharsets.UTF_8), buffer.getShort(position + 2));
+    }
+
+    private static int checksum(final MappedByteBuffer buffer, final int position, final int recordSize) {
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.slice(position, recordSize - Integer.BYTES));
+        return (int) crc.getValue();
+    }
+
+    private static void writeGuildSettings(final MappedByteBuffer buffer, final int position, final GuildSettings settings) {
+        final byte[] emoji = settings.starEmoji().getName().getBytes(StandardCharsets.UTF_8);
+        buffer.putShort(position + 2, settings.minimumStars());
+        buffer.putLong(position + 4, settings.guildId());
+        buffer.putLong(position + 12, settings.starboardChannelId());
+        buffer.put(position + 20, (byte) emoji.length);
+        buffer.put(position + 21, emoji);
+        buffer.put(position, RECORD_GUILD_SETTINGS);
+        buffer.putInt(position + RECORD_SIZE - Integer.BYTES, checksum(buffer, position, RECORD_SIZE));
+    }
+
+    private static void writeRecord(final MappedByteBuffer buffer, final int position, final byte type, final DatabaseRow row) {
+        byte flags = 0;
+        if (row.referencedMessageId().isPresent())
+            flags |= FLAG_REFERENCED_MESSAGE;
+        if (row.referencedAuthorId().isPresent())
+            flags |= FLAG_REFERENCED_AUTHOR;
+        buffer.put(position + 1, flags);
+        buffer.putShort(position + 2, row.stars());
+        buffer.putLong(position + 4, row.originalMessageId());
+        buffer.putLong(position + 12, row.originalChannelId());
+        buffer.putLong(position + 20, row.originalAuthorId());
+        buffer.putLong(position + 28, row.starboardMessageId());
+        buffer.putLong(position + 36, row.referencedMessageId().orElse(0L));
+        buffer.putLong(position + 44, row.referencedAuthorId().orElse(0L));
+        buffer.putLong(position + 52, row.guildId());
+        buffer.put(position, type);
+        buffer.putInt(position + RECORD_SIZE - Integer.BYTES, checksum(buffer, position, RECORD_SIZE));
+    }
+
+    private void append(final byte type, final DatabaseRow row) {
+        ensureCapacity();
+        writeRecord(buffer, writePosition, type, row);
+        writePosition += RECORD_SIZE;
+        recordCount++;
+    }
+
+    private void ensureCapacity() {
+        if (writePosition + RECORD_SIZE > buffer.capacity()) {
+            final long capacity = (long) buffer.capacity() * 2;
+            if (capacity > Integer.MAX_VALUE)
+                throw new IllegalStateException("Journal " + path + " has reached its maximum size");
+            buffer = ExceptionUtil.wrap(IOException.class, () -> channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity), e -> new UncheckedIOException("Failed to grow journal", e));
+        }
+    }
+
+    private synchronized void force() {
+        buffer.force();
+    }
+
+    private synchronized void compactIfWorthwhile() {
+        if (recordCount < 1024 || recordCount < (rows.size() + guildSettings.size()) * 2)
+            return;
+        try {
+            compact();
+        } catch (IOException e) {
+            Star2.LOGGER.error("Failed to compact journal {}", path, e);
+        }
+    }
+
+    private synchronized void compact() throws IOException {
+        final int previousRecordCount = recordCount;
+        final Path compactedPath = path.resolveSibling(path.getFileName() + ".compact");
+        final FileChannel compactedChannel = FileChannel.open(compactedPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final MappedByteBuffer compactedBuffer = compactedChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_CAPACITY, HEADER_SIZE + (long) RECORD_SIZE * (rows.size() + guildSettings.size()) * 2));
+            writeHeader(compactedBuffer);
+            int position = HEADER_SIZE;
+            for (final DatabaseRow row : rows.values()) {
+                writeRecord(compactedBuffer, position, RECORD_PUT, row);
+                position += RECORD_SIZE;
+            }
+            for (final GuildSettings settings : guildSettings.values()) {
+                writeGuildSettings(compactedBuffer, position, settings);
+                position += RECORD_SIZE;
+            }
+            compactedBuffer.force();
+            Files.move(compactedPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            ExceptionUtil.ignore(channel::close);
+            this.channel = compactedChannel;
+            this.buffer = compactedBuffer;
+            this.writePosition = position;
+            this.recordCount = rows.size() + guildSettings.size();
+        } catch (IOException | RuntimeException e) {
+            ExceptionUtil.ignore(compactedChannel::close);
+            throw e;
+        }
+        Star2.LOGGER.info("Compacted journal {} from {} to {} records", path, previousRecordCount, recordCount);
+    }
+
+    private synchronized Collection<DatabaseRow> select(final Predicate<DatabaseRow> predicate) {
+        final List<DatabaseRow> selected = new ArrayList<>();
+        for (final DatabaseRow row : rows.values()) {
+            if (predicate.test(row))
+                selected.add(row);
+        }
+        return selected;
+    }
+
+    private void remove(final DatabaseRow row) {
+        rows.remove(row.originalMessageId());
+        boardMembershipIndex.remove(row);
+        append(RECORD_DELETE, row);
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        scheduler.shutdownNow();
+        buffer.force();
+        ExceptionUtil.ignore(channel::close);
+    }
+
+    @Override
+    public synchronized List<String> describeStatistics() {
+        return List.of(
+                "Journal: " + rows.size() + " entries and " + guildSettings.size() + " guild configs in " + recordCount + " records",
+                boardMembershipIndex.toString()
+        );
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> updateStars(final long originalMessageId, final short newStarCount) {
+        final DatabaseRow row = rows.get(originalMessageId);
+        if (row == null || row.stars() == newStarCount)
+            return CompletableFuture.completedFuture(null);
+        final DatabaseRow updated = row.withStars(newStarCount);
+        rows.put(originalMessageId, updated);
+        append(RECORD_PUT, updated);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Optional<DatabaseRow>> removeBoardEntry(final long originalMessageId) {
+        final DatabaseRow row = rows.get(originalMessageId);
+        if (row == null)
+            return CompletableFuture.completedFuture(Optional.empty());
+        remove(row);
+        return CompletableFuture.completedFuture(Optional.of(row));
+    }
+
+    @Override
+    public synchronized CompletableFuture<Boolean> addBoardEntry(final long guildId, final long originalMessageId, final long originalChannelId, final long originalAuthorId, final long starboardMessageId, final @Nullable Long referencedMessageId, final @Nullable Long referencedAuthorId, final short stars, final @Nullable ShardLeaseStore.Fence fence) {
+        if (rows.containsKey(originalMessageId))
+            return CompletableFuture.failedFuture(new IllegalStateException("Starboard entry for " + originalMessageId + " already exists"));
+        final DatabaseRow row = new DatabaseRow(guildId, originalMessageId, originalChannelId, originalAuthorId, starboardMessageId, Optional.ofNullable(referencedMessageId), Optional.ofNullable(referencedAuthorId), stars);
+        rows.put(originalMessageId, row);
+        boardMembershipIndex.add(originalAuthorId, referencedMessageId);
+        append(RECORD_PUT, row);
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Optional<DatabaseRow>> getBoardEntry(final long originalMessageId) {
+        return CompletableFuture.completedFuture(Optional.ofNullable(rows.get(originalMessageId)));
+    }
+
+    @Override
+    public CompletableFuture<Collection<DatabaseRow>> getStarboardsInReferenceTo(final long referencedMessageId) {
+        if (!boardMembershipIndex.hasReferencedMessage(referencedMessageId))
+            return CompletableFuture.completedFuture(List.of());
+        return CompletableFuture.completedFuture(select(row -> row.referencedMessageId().filter(id -> id == referencedMessageId).isPresent()));
+    }
+
+    @Override
+    public CompletableFuture<Collection<DatabaseRow>> getUserBoardEntries(final long userId) {
+        if (!boardMembershipIndex.hasAuthor(userId))
+            return CompletableFuture.completedFuture(List.of());
+        return CompletableFuture.completedFuture(select(row -> row.originalAuthorId() == userId));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> userHasBoardEntry(final long userId) {
+        return CompletableFuture.completedFuture(boardMembershipIndex.hasAuthor(userId));
+    }
+
+    @Override
+    public synchronized CompletableFuture<Collection<DatabaseRow>> removeBoardEntriesInChannel(final long channelId) {
+        final Collection<DatabaseRow> removed = select(row -> row.originalChannelId() == channelId);
+        removed.forEach(this::remove);
+        return CompletableFuture.completedFuture(removed);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Collection<DatabaseRow>> removeGuildBoardEntries(final long guildId) {
+        final Collection<DatabaseRow> removed = select(row -> row.guildId() == guildId);
+        removed.forEach(this::remove);
+        return CompletableFuture.completedFuture(removed);
+    }
+
+    @Override
+    public synchronized CompletableFuture<Collection<GuildSettings>> loadGuildSettings() {
+        return CompletableFuture.completedFuture(List.copyOf(guildSettings.values()));
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> saveGuildSettings(final GuildSettings settings) {
+        if (settings.starEmoji().getName().getBytes(StandardCharsets.UTF_8).length > MAXIMUM_EMOJI_BYTES)
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Emoji is too long to be stored in the journal"));
+        guildSettings.put(settings.guildId(), settings);
+        ensureCapacity();
+        writeGuildSettings(buffer, writePosition, settings);
+        writePosition += RECORD_SIZE;
+        recordCount++;
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public synchronized CompletableFuture<List<DatabaseRow>> getBoardEntriesAfter(final long originalMessageId, final int limit) {
+        return CompletableFuture.completedFuture(rows.tailMap(originalMessageId, false).values().stream().limit(limit).toList());
+    }
+
+    @Override
+    public synchronized CompletableFuture<Long> countBoardEntriesAfter(final long originalMessageId) {
+        return CompletableFuture.completedFuture((long) rows.tailMap(originalMessageId, false).size());
+    }
+
+    @Override
+    public synchronized CompletableFuture<OptionalLong> loadJobCheckpoint(final String job) {
+        final String lastKey = checkpoints.getProperty(job);
+        return CompletableFuture.completedFuture(lastKey == null ? OptionalLong.empty() : OptionalLong.of(Long.parseLong(lastKey)));
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> storeJobCheckpoint(final String job, final long lastKey) {
+        checkpoints.setProperty(job, Long.toString(lastKey));
+        return writeCheckpoints();
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> clearJobCheckpoint(final String job) {
+        checkpoints.remove(job);
+        return writeCheckpoints();
+    }
+
+    private CompletableFuture<Void> writeCheckpoints() {
+        final Path temporaryPath = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        try {
+            try (final Writer writer = Files.newBufferedWriter(temporaryPath)) {
+                checkpoints.store(writer, null);
+            }
+            Files.move(temporaryPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(new UncheckedIOException("Failed to write job checkpoints", e));
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> forEachRow(final Consumer<DatabaseRow> consumer) {
+        final List<DatabaseRow> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(rows.values());
+        }
+        return CompletableFuture.runAsync(() -> snapshot.forEach(consumer), runnable -> Thread.ofVirtual().name("star2-journal-scan").start(runnable));
+    }
+}
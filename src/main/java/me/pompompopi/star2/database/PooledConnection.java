@@ -0,0 +1,70 @@
+package me.pompompopi.star2.database;
+
+import me.pompompopi.star2.util.ExceptionUtil;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+final class PooledConnection {
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statementCache;
+
+    PooledConnection(final Connection connection, final int statementCacheSize) {
+        this.connection = connection;
+        this.statementCache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= statementCacheSize)
+                    return false;
+                ExceptionUtil.ignore(eldest.getValue()::close);
+                return true;
+            }
+        };
+    }
+
+    Connection connection() {
+        return connection;
+    }
+
+    /**
+     * Returns a prepared statement for the given SQL text, reusing the statement previously prepared on this connection if there is one.
+     * The returned statement is owned by the cache and must not be closed by the caller.
+     */
+    PreparedStatement prepareStatement(final String sql) throws SQLException {
+        final PreparedStatement cached = statementCache.get(sql);
+        if (cached != null && !cached.isClosed()) {
+            cached.clearParameters();
+            cached.clearBatch();
+            return cached;
+        }
+        final PreparedStatement statement = connection.prepareStatement(sql);
+        statementCache.put(sql, statement);
+        return statement;
+    }
+
+    boolean isClosed() {
+        try {
+            return connection.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    boolean isValid() {
+        try {
+            return connection.isValid(5);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    void close() {
+        for (final PreparedStatement statement : statementCache.values())
+            ExceptionUtil.ignore(statement::close);
+        statementCache.clear();
+        ExceptionUtil.ignore(connection::close);
+    }
+}
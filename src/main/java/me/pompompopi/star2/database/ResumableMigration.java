@@ -0,0 +1,160 @@
+package me.pompompopi.star2.database;
+
+import me.pompompopi.star2.Star2;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// Walks the rows matching a filter in primary key order, one chunk at a time, and stores the last key of every
+// chunk together with that chunk's updates so that an interrupted migration carries on where it stopped.
+// A row that fails to resolve holds the checkpoint before it and is retried, a row that keeps failing is given up on.
+final class ResumableMigration<T> {
+    private static final int MAXIMUM_ATTEMPTS = 5;
+    private static final long RETRY_DELAY_MILLIS = 5000;
+    private final String job;
+    private final String selectSql;
+    private final String updateSql;
+    private final Function<List<DatabaseRow>, CompletableFuture<Void>> prefetcher;
+    private final Function<DatabaseRow, CompletableFuture<Optional<T>>> resolver;
+    private final UpdateBinder<T> binder;
+    private final Consumer<T> onApplied;
+
+    ResumableMigration(final String job, final String filter, final String updateSql, final Function<List<DatabaseRow>, CompletableFuture<Void>> prefetcher, final Function<DatabaseRow, CompletableFuture<Optional<T>>> resolver, final UpdateBinder<T> binder, final Consumer<T> onApplied) {
+        this.job = job;
+        this.selectSql = "SELECT * FROM starboard WHERE " + filter + " AND original_message_id > ? ORDER BY original_message_id LIMIT ?;";
+        this.updateSql = updateSql;
+        this.prefetcher = prefetcher;
+        this.resolver = resolver;
+        this.binder = binder;
+        this.onApplied = onApplied;
+    }
+
+    // Stops without checkpointing the current chunk once seesEveryShard fails, rows of unseen shards would resolve as missing
+    void run(final ConnectionPool connectionPool, final int chunkSize, final int concurrency, final BooleanSupplier seesEveryShard) throws SQLException {
+        long lastKey = connectionPool.use(connection -> JobCheckpoints.load(connection, job, Long.MIN_VALUE));
+        if (lastKey != Long.MIN_VALUE)
+            Star2.LOGGER.info("Resuming database migration {} after {}", job, lastKey);
+        long migrated = 0;
+        final Map<Long, Integer> failedAttempts = new HashMap<>();
+        while (true) {
+            if (!seesEveryShard.getAsBoolean()) {
+                Star2.LOGGER.warn("Pausing database migration {} at {}, this process no longer holds every shard", job, lastKey);
+                return;
+            }
+            final long after = lastKey;
+            final List<DatabaseRow> chunk = connectionPool.use(connection -> {
+                final PreparedStatement statement = connection.prepareStatement(selectSql);
+                statement.setLong(1, after);
+                statement.setInt(2, chunkSize);
+                final List<DatabaseRow> rows = new ArrayList<>(chunkSize);
+                try (final ResultSet results = statement.executeQuery()) {
+                    while (results.next())
+                        rows.add(new DatabaseRow(results));
+                }
+                return rows;
+            });
+            if (chunk.isEmpty())
+                break;
+            try {
+                prefetcher.apply(chunk).join();
+            } catch (CompletionException e) {
+                Star2.LOGGER.warn("Failed to prefetch chunk in database migration {}, resolving rows one by one", job, e.getCause());
+            }
+            final Resolution<T> resolution = resolve(chunk, concurrency, failedAttempts);
+            // A shard lost while resolving may have made some of the chunk's rows look missing
+            if (!seesEveryShard.getAsBoolean())
+                continue;
+            final long chunkLastKey = resolution.firstFailed() == -1 ? chunk.getLast().originalMessageId() : chunk.get(resolution.firstFailed()).originalMessageId() - 1;
+            // Updates past a failed row are written too, they no longer match the filter once it is retried
+            connectionPool.use(connection -> {
+                write(connection, resolution.updates(), chunkLastKey);
+                return null;
+            });
+            resolution.updates().forEach(onApplied);
+            migrated += resolution.updates().size();
+            lastKey = chunkLastKey;
+            failedAttempts.keySet().removeIf(key -> key <= chunkLastKey);
+            Star2.LOGGER.info("Database migration {}: migrated {} rows so far, checkpoint at {}", job, migrated, lastKey);
+            if (resolution.firstFailed() == -1)
+                continue;
+            try {
+                Thread.sleep(RETRY_DELAY_MILLIS * failedAttempts.get(chunk.get(resolution.firstFailed()).originalMessageId()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        Star2.LOGGER.info("Finished database migration {}, migrated {} rows", job, migrated);
+    }
+
+    // firstFailed is the first row that failed but still has attempts left, -1 if there is none
+    private Resolution<T> resolve(final List<DatabaseRow> chunk, final int concurrency, final Map<Long, Integer> failedAttempts) {
+        final Semaphore permits = new Semaphore(concurrency);
+        final List<CompletableFuture<Optional<T>>> futures = new ArrayList<>(chunk.size());
+        for (final DatabaseRow row : chunk) {
+            permits.acquireUninterruptibly();
+            futures.add(resolver.apply(row).whenComplete((r, t) -> permits.release()));
+        }
+        final List<T> updates = new ArrayList<>(chunk.size());
+        int firstFailed = -1;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).join().ifPresent(updates::add);
+            } catch (CompletionException e) {
+                final long key = chunk.get(i).originalMessageId();
+                final int attempts = failedAttempts.merge(key, 1, Integer::sum);
+                if (attempts >= MAXIMUM_ATTEMPTS) {
+                    Star2.LOGGER.warn("Giving up on row {} in database migration {} after {} attempts", key, job, attempts, e.getCause());
+                    continue;
+                }
+                Star2.LOGGER.warn("Failed to resolve row {} in database migration {}, retrying it later", key, job, e.getCause());
+                if (firstFailed == -1)
+                    firstFailed = i;
+            }
+        }
+        return new Resolution<>(updates, firstFailed);
+    }
+
+    private void write(final PooledConnection connection, final List<T> updates, final long chunkLastKey) throws SQLException {
+        final Connection rawConnection = connection.connection();
+        rawConnection.setAutoCommit(false);
+        try {
+            if (!updates.isEmpty()) {
+                final PreparedStatement statement = connection.prepareStatement(updateSql);
+                for (final T update : updates) {
+                    binder.bind(statement, update);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            JobCheckpoints.store(connection, job, chunkLastKey);
+            rawConnection.commit();
+        } catch (SQLException | RuntimeException e) {
+            rawConnection.rollback();
+            throw e;
+        } finally {
+            rawConnection.setAutoCommit(true);
+        }
+    }
+
+    private record Resolution<T>(List<T> updates, int firstFailed) {
+    }
+
+    @FunctionalInterface
+    interface UpdateBinder<T> {
+        void bind(final PreparedStatement statement, final T update) throws SQLException;
+    }
+}
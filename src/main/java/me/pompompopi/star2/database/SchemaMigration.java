@@ -0,0 +1,19 @@
+package me.pompompopi.star2.database;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+// An index named by invalidIndex is dropped first if an interrupted concurrent build left it invalid
+record SchemaMigration(int version, String description, boolean transactional, @Nullable String invalidIndex, List<String> statements) {
+    static SchemaMigration of(final int version, final String description, final String... statements) {
+        return new SchemaMigration(version, description, true, null, List.of(statements));
+    }
+
+    // CREATE INDEX CONCURRENTLY cannot run inside a transaction and leaves an invalid index behind when interrupted
+    static SchemaMigration concurrentIndex(final int version, final String indexName, final String table, final String column) {
+        return new SchemaMigration(version, "Add index " + indexName, false, indexName, List.of(
+                "CREATE INDEX CONCURRENTLY IF NOT EXISTS " + indexName + " ON " + table + " (" + column + ");"
+        ));
+    }
+}
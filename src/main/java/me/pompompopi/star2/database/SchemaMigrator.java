@@ -0,0 +1,130 @@
+package me.pompompopi.star2.database;
+
+import me.pompompopi.star2.Star2;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+final class SchemaMigrator {
+    private static final long MIGRATION_LOCK_KEY = 0x73746172326D6967L;
+    private static final long MIGRATION_LOCK_POLL_MILLIS = 1000;
+    private static final List<SchemaMigration> MIGRATIONS = List.of(
+            SchemaMigration.of(1, "Create starboard table", "CREATE TABLE IF NOT EXISTS starboard (original_message_id bigint NOT NULL PRIMARY KEY, original_channel_id bigint NOT NULL, original_author_id bigint NOT NULL, starboard_message_id bigint NOT NULL UNIQUE, referenced_message_id bigint, referenced_author_id bigint, stars smallint NOT NULL);"),
+            SchemaMigration.of(2, "Add original author id", "ALTER TABLE starboard ADD COLUMN IF NOT EXISTS original_author_id bigint NOT NULL DEFAULT -1;"),
+            SchemaMigration.of(3, "Add referenced message id", "ALTER TABLE starboard ADD COLUMN IF NOT EXISTS referenced_message_id bigint DEFAULT -1;"),
+            SchemaMigration.of(4, "Add referenced author id", "ALTER TABLE starboard ADD COLUMN IF NOT EXISTS referenced_author_id bigint DEFAULT NULL;"),
+            SchemaMigration.concurrentIndex(5, "starboard_original_author_id_idx", "starboard", "original_author_id"),
+            SchemaMigration.concurrentIndex(6, "starboard_referenced_message_id_idx", "starboard", "referenced_message_id"),
+            SchemaMigration.concurrentIndex(7, "starboard_original_channel_id_idx", "starboard", "original_channel_id"),
+            SchemaMigration.of(8, "Create job checkpoint table", "CREATE TABLE IF NOT EXISTS job_checkpoint (job text NOT NULL PRIMARY KEY, last_key bigint NOT NULL, updated_at timestamptz NOT NULL DEFAULT now());"),
+            SchemaMigration.of(9, "Notify listeners of starboard changes",
+                    """
+                            CREATE OR REPLACE FUNCTION starboard_notify_change() RETURNS trigger AS $$
+                            BEGIN
+                                IF TG_OP = 'INSERT' THEN
+                                    PERFORM pg_notify('starboard_changes', concat_ws(':', TG_OP, NEW.original_message_id, NEW.original_author_id, coalesce(NEW.referenced_message_id::text, ''), '', '', current_setting('application_name')));
+                                ELSIF TG_OP = 'UPDATE' THEN
+                                    PERFORM pg_notify('starboard_changes', concat_ws(':', TG_OP, NEW.original_message_id, NEW.original_author_id, coalesce(NEW.referenced_message_id::text, ''), OLD.original_author_id, coalesce(OLD.referenced_message_id::text, ''), current_setting('application_name')));
+                                ELSE
+                                    PERFORM pg_notify('starboard_changes', concat_ws(':', TG_OP, OLD.original_message_id, '', '', OLD.original_author_id, coalesce(OLD.referenced_message_id::text, ''), current_setting('application_name')));
+                                END IF;
+                                RETURN NULL;
+                            END;
+                            $$ LANGUAGE plpgsql;""",
+                    "DROP TRIGGER IF EXISTS starboard_notify_change ON starboard;",
+                    "CREATE TRIGGER starboard_notify_change AFTER INSERT OR UPDATE OR DELETE ON starboard FOR EACH ROW EXECUTE FUNCTION starboard_notify_change();"),
+            SchemaMigration.of(10, "Create guild config table", "CREATE TABLE IF NOT EXISTS guild_config (guild_id bigint NOT NULL PRIMARY KEY, starboard_channel_id bigint NOT NULL, emoji text NOT NULL, minimum_stars smallint NOT NULL);"),
+            SchemaMigration.of(11, "Add guild id", "ALTER TABLE starboard ADD COLUMN IF NOT EXISTS guild_id bigint;"),
+            SchemaMigration.concurrentIndex(12, "starboard_guild_id_idx", "starboard", "guild_id"),
+            SchemaMigration.of(13, "Create shard lease tables",
+                    "CREATE SEQUENCE IF NOT EXISTS shard_lease_token;",
+                    "CREATE TABLE IF NOT EXISTS shard_lease (shard_id integer NOT NULL PRIMARY KEY, owner text NOT NULL, token bigint NOT NULL, expires_at timestamptz NOT NULL);",
+                    "CREATE TABLE IF NOT EXISTS lease_node (owner text NOT NULL PRIMARY KEY, expires_at timestamptz NOT NULL);")
+    );
+
+    private SchemaMigrator() {
+
+    }
+
+    static void migrate(final Connection connection) throws SQLException {
+        try (final Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS schema_version (version integer NOT NULL PRIMARY KEY, description text NOT NULL, applied_at timestamptz NOT NULL DEFAULT now());");
+            acquireMigrationLock(connection, statement);
+            try {
+                final int currentVersion = getCurrentVersion(statement);
+                for (final SchemaMigration migration : MIGRATIONS) {
+                    if (migration.version() <= currentVersion)
+                        continue;
+                    Star2.LOGGER.info("Applying schema migration {}: {}", migration.version(), migration.description());
+                    apply(connection, migration);
+                }
+            } finally {
+                statement.execute("SELECT pg_advisory_unlock(" + MIGRATION_LOCK_KEY + ");");
+            }
+        }
+    }
+
+    // Serialises migrations between instances starting at the same time. A blocking pg_advisory_lock would leave the
+    // waiting instance in a statement with a snapshot, which CREATE INDEX CONCURRENTLY in the holder waits out, so
+    // the lock is polled in autocommit and the waiting instance holds no snapshot between attempts.
+    private static void acquireMigrationLock(final Connection connection, final Statement statement) throws SQLException {
+        connection.setAutoCommit(true);
+        while (true) {
+            try (final ResultSet results = statement.executeQuery("SELECT pg_try_advisory_lock(" + MIGRATION_LOCK_KEY + ");")) {
+                results.next();
+                if (results.getBoolean(1))
+                    return;
+            }
+            Star2.LOGGER.info("Waiting for another instance to finish schema migrations");
+            try {
+                Thread.sleep(MIGRATION_LOCK_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for the schema migration lock", e);
+            }
+        }
+    }
+
+    private static int getCurrentVersion(final Statement statement) throws SQLException {
+        try (final ResultSet results = statement.executeQuery("SELECT coalesce(max(version), 0) FROM schema_version;")) {
+            results.next();
+            return results.getInt(1);
+        }
+    }
+
+    // A valid index is kept, so re-running an unrecorded migration does not rebuild it
+    private static boolean isInvalidIndex(final Connection connection, final String indexName) throws SQLException {
+        try (final PreparedStatement statement = connection.prepareStatement("SELECT NOT i.indisvalid FROM pg_index i JOIN pg_class c ON c.oid = i.indexrelid WHERE c.relname = ? AND pg_table_is_visible(i.indrelid);")) {
+            statement.setString(1, indexName);
+            try (final ResultSet results = statement.executeQuery()) {
+                return results.next() && results.getBoolean(1);
+            }
+        }
+    }
+
+    private static void apply(final Connection connection, final SchemaMigration migration) throws SQLException {
+        final boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(!migration.transactional());
+        try (final Statement statement = connection.createStatement(); final PreparedStatement versionStatement = connection.prepareStatement("INSERT INTO schema_version (version, description) VALUES (?, ?);")) {
+            if (migration.invalidIndex() != null && isInvalidIndex(connection, migration.invalidIndex()))
+                statement.execute("DROP INDEX CONCURRENTLY IF EXISTS " + migration.invalidIndex() + ";");
+            for (final String sql : migration.statements())
+                statement.execute(sql);
+            versionStatement.setInt(1, migration.version());
+            versionStatement.setString(2, migration.description());
+            versionStatement.executeUpdate();
+            if (migration.transactional())
+                connection.commit();
+        } catch (SQLException e) {
+            if (migration.transactional())
+                connection.rollback();
+            throw new SQLException("Schema migration " + migration.version() + " (" + migration.description() + ") failed", e);
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+}
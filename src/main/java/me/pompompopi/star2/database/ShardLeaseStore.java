@@ -0,0 +1,106 @@
+package me.pompompopi.star2.database;
+
+import me.pompompopi.star2.util.ExceptionUtil;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+// Shard leases shared by every process using the same database. Each grant is stamped with a token drawn from a
+// sequence, so a process whose lease lapsed while it was paused cannot renew or act on a lease taken over since.
+public final class ShardLeaseStore {
+    private final ConnectionPool connectionPool;
+    private final Executor executor;
+    private final String owner;
+
+    ShardLeaseStore(final ConnectionPool connectionPool, final Executor executor, final String owner) {
+        this.connectionPool = connectionPool;
+        this.executor = executor;
+        this.owner = owner;
+    }
+
+    private <T> CompletableFuture<T> withConnection(final ConnectionPool.SqlFunction<T> function) {
+        return CompletableFuture.supplyAsync(() -> ExceptionUtil.wrap(SQLException.class, () -> this.connectionPool.use(function), CompletionException::new), executor);
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    // Announces this process and returns how many processes are alive, used to work out a fair share of shards
+    public CompletableFuture<Integer> heartbeat(final long durationMillis) {
+        return withConnection(connection -> {
+            final PreparedStatement upsert = connection.prepareStatement("INSERT INTO lease_node (owner, expires_at) VALUES (?, now() + ? * interval '1 millisecond') ON CONFLICT (owner) DO UPDATE SET expires_at = excluded.expires_at;");
+            upsert.setString(1, owner);
+            upsert.setLong(2, durationMillis);
+            upsert.executeUpdate();
+            connection.prepareStatement("DELETE FROM lease_node WHERE expires_at < now() - interval '1 hour';").executeUpdate();
+            try (final ResultSet results = connection.prepareStatement("SELECT count(*) FROM lease_node WHERE expires_at > now();").executeQuery()) {
+                results.next();
+                return results.getInt(1);
+            }
+        });
+    }
+
+    // Takes the lease if it is free or has expired, returning the new fencing token
+    public CompletableFuture<OptionalLong> tryAcquire(final int shardId, final long durationMillis) {
+        return withConnection(connection -> {
+            final PreparedStatement statement = connection.prepareStatement("INSERT INTO shard_lease (shard_id, owner, token, expires_at) VALUES (?, ?, nextval('shard_lease_token'), now() + ? * interval '1 millisecond') ON CONFLICT (shard_id) DO UPDATE SET owner = excluded.owner, token = excluded.token, expires_at = excluded.expires_at WHERE shard_lease.expires_at < now() RETURNING token;");
+            statement.setInt(1, shardId);
+            statement.setString(2, owner);
+            statement.setLong(3, durationMillis);
+            try (final ResultSet results = statement.executeQuery()) {
+                return results.next() ? OptionalLong.of(results.getLong(1)) : OptionalLong.empty();
+            }
+        });
+    }
+
+    // Fails once anyone else has been granted the shard, even if this lease lapsed unnoticed in between
+    public CompletableFuture<Boolean> renew(final int shardId, final long token, final long durationMillis) {
+        return withConnection(connection -> {
+            final PreparedStatement statement = connection.prepareStatement("UPDATE shard_lease SET expires_at = now() + ? * interval '1 millisecond' WHERE shard_id = ? AND token = ?;");
+            statement.setLong(1, durationMillis);
+            statement.setInt(2, shardId);
+            statement.setLong(3, token);
+            return statement.executeUpdate() == 1;
+        });
+    }
+
+    public CompletableFuture<Boolean> isCurrent(final int shardId, final long token) {
+        return withConnection(connection -> {
+            final PreparedStatement statement = connection.prepareStatement("SELECT 1 FROM shard_lease WHERE shard_id = ? AND token = ? AND expires_at > now();");
+            statement.setInt(1, shardId);
+            statement.setLong(2, token);
+            try (final ResultSet results = statement.executeQuery()) {
+                return results.next();
+            }
+        });
+    }
+
+    public CompletableFuture<Void> release(final int shardId, final long token) {
+        return withConnection(connection -> {
+            final PreparedStatement statement = connection.prepareStatement("DELETE FROM shard_lease WHERE shard_id = ? AND token = ?;");
+            statement.setInt(1, shardId);
+            statement.setLong(2, token);
+            statement.executeUpdate();
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> leave() {
+        return withConnection(connection -> {
+            final PreparedStatement statement = connection.prepareStatement("DELETE FROM lease_node WHERE owner = ?;");
+            statement.setString(1, owner);
+            statement.executeUpdate();
+            return null;
+        });
+    }
+
+    // A lease as granted, writes carrying it only succeed while no other process has been granted the shard since
+    public record Fence(int shardId, long token) {
+    }
+}
@@ -0,0 +1,94 @@
+package me.pompompopi.star2.database;
+
+import me.pompompopi.star2.Star2;
+import me.pompompopi.star2.util.ExceptionUtil;
+import me.pompompopi.star2.util.Tuple;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+final class StarCountWriteBuffer {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "star2-star-count-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Function<Collection<Tuple<Short, Long>>, CompletableFuture<Void>> writer;
+    private final int maximumPending;
+    private Map<Long, Short> pending = new HashMap<>();
+    // The batch being written stays readable until it commits, otherwise a read in between would see the old count
+    private Map<Long, Short> flushing = new HashMap<>();
+    private CompletableFuture<Void> lastFlush = CompletableFuture.completedFuture(null);
+
+    StarCountWriteBuffer(final Function<Collection<Tuple<Short, Long>>, CompletableFuture<Void>> writer, final int maximumPending, final long flushIntervalMillis) {
+        this.writer = writer;
+        this.maximumPending = maximumPending;
+        this.scheduler.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void put(final long originalMessageId, final short stars) {
+        final boolean full;
+        synchronized (this) {
+            pending.put(originalMessageId, stars);
+            full = pending.size() >= maximumPending;
+        }
+        if (full)
+            scheduler.execute(this::flush);
+    }
+
+    synchronized Optional<Short> getPending(final long originalMessageId) {
+        final Short stars = pending.get(originalMessageId);
+        return Optional.ofNullable(stars != null ? stars : flushing.get(originalMessageId));
+    }
+
+    synchronized void discard(final long originalMessageId) {
+        pending.remove(originalMessageId);
+        flushing.remove(originalMessageId);
+    }
+
+    synchronized void discardAll() {
+        pending.clear();
+        flushing.clear();
+    }
+
+    synchronized CompletableFuture<Void> flush() {
+        // Flushes are chained so that a newer count can never be overwritten by an older batch that finishes later
+        lastFlush = lastFlush.handle((v, t) -> null).thenCompose(v -> {
+            final Map<Long, Short> snapshot;
+            final List<Tuple<Short, Long>> updates;
+            synchronized (this) {
+                if (pending.isEmpty())
+                    return CompletableFuture.completedFuture(null);
+                snapshot = pending;
+                flushing = snapshot;
+                pending = new HashMap<>();
+                updates = new ArrayList<>(snapshot.size());
+                snapshot.forEach((originalMessageId, stars) -> updates.add(new Tuple<>(stars, originalMessageId)));
+            }
+            return writer.apply(updates).whenComplete((r, t) -> {
+                synchronized (this) {
+                    if (t != null) {
+                        Star2.LOGGER.warn("Failed to flush {} star count updates, re-queueing them", updates.size(), t);
+                        snapshot.forEach(pending::putIfAbsent);
+                    }
+                    flushing = new HashMap<>();
+                }
+            });
+        });
+        return lastFlush;
+    }
+
+    void shutdown() {
+        scheduler.shutdown();
+        ExceptionUtil.ignore(() -> flush().join());
+    }
+}
@@ -0,0 +1,89 @@
+package me.pompompopi.star2.database;
+
+import me.pompompopi.star2.config.Configuration;
+import me.pompompopi.star2.config.GuildSettings;
+import me.pompompopi.star2.messages.MessageCache;
+import net.dv8tion.jda.api.sharding.ShardManager;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+public interface StarboardStore {
+    static StarboardStore create(final Configuration configuration) throws SQLException, ExecutionException, InterruptedException, IOException {
+        return switch (configuration.getStoreType()) {
+            case POSTGRES -> new DatabaseConnection(configuration);
+            case JOURNAL -> new JournalStarboardStore(configuration);
+        };
+    }
+
+    // Rows are resolved through the channels visible to this process, so the migration only runs while seesEveryShard holds
+    default CompletableFuture<Void> performMigration(final ShardManager shardManager, final MessageCache messageCache, final BooleanSupplier seesEveryShard) {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    void shutdown();
+
+    // Only stores shared between processes can hand out shard leases
+    default Optional<ShardLeaseStore> getShardLeaseStore() {
+        return Optional.empty();
+    }
+
+    // Called with the original message id of every entry changed by another instance, or -1 when every entry may have changed
+    default void addRemoteChangeListener(final LongConsumer listener) {
+
+    }
+
+    List<String> describeStatistics();
+
+    CompletableFuture<Void> updateStars(final long originalMessageId, final short newStarCount);
+
+    default CompletableFuture<Void> flushStarUpdates() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    CompletableFuture<Optional<DatabaseRow>> removeBoardEntry(final long originalMessageId);
+
+    // With a fence the entry is only stored while that lease is still current, completes with whether it was stored
+    CompletableFuture<Boolean> addBoardEntry(final long guildId, final long originalMessageId, final long originalChannelId, final long originalAuthorId, final long starboardMessageId, final @Nullable Long referencedMessageId, final @Nullable Long referencedAuthorId, final short stars, final @Nullable ShardLeaseStore.Fence fence);
+
+    CompletableFuture<Optional<DatabaseRow>> getBoardEntry(final long originalMessageId);
+
+    CompletableFuture<Collection<DatabaseRow>> getStarboardsInReferenceTo(final long referencedMessageId);
+
+    CompletableFuture<Collection<DatabaseRow>> getUserBoardEntries(final long userId);
+
+    CompletableFuture<Boolean> userHasBoardEntry(final long userId);
+
+    CompletableFuture<Collection<DatabaseRow>> removeBoardEntriesInChannel(final long channelId);
+
+    CompletableFuture<Collection<DatabaseRow>> removeGuildBoardEntries(final long guildId);
+
+    CompletableFuture<Collection<GuildSettings>> loadGuildSettings();
+
+    CompletableFuture<Void> saveGuildSettings(final GuildSettings settings);
+
+    // Visits every row in ascending original message id order
+    CompletableFuture<Void> forEachRow(final Consumer<DatabaseRow> consumer);
+
+    // One page of rows in ascending original message id order, for long jobs that must not hold a cursor open
+    CompletableFuture<List<DatabaseRow>> getBoardEntriesAfter(final long originalMessageId, final int limit);
+
+    CompletableFuture<Long> countBoardEntriesAfter(final long originalMessageId);
+
+    // The last key a long job has finished, so it resumes there after a restart
+    CompletableFuture<OptionalLong> loadJobCheckpoint(final String job);
+
+    CompletableFuture<Void> storeJobCheckpoint(final String job, final long lastKey);
+
+    CompletableFuture<Void> clearJobCheckpoint(final String job);
+}
@@ -0,0 +1,194 @@
+package me.pompompopi.star2.messages;
+
+import me.pompompopi.star2.util.CacheStatistics;
+import me.pompompopi.star2.util.ExceptionUtil;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageHistory;
+import net.dv8tion.jda.api.entities.channel.middleman.MessageChannel;
+import net.dv8tion.jda.api.exceptions.ErrorResponseException;
+import net.dv8tion.jda.api.exceptions.RateLimitedException;
+import net.dv8tion.jda.api.requests.ErrorResponse;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+
+// Keeps recently fetched messages so hot messages are not fetched over REST for every reaction and re-render
+public final class MessageCache {
+    private static final int HISTORY_LIMIT = 100;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder historyRequests = new LongAdder();
+    private final LongAdder historyResolved = new LongAdder();
+    private final Map<Long, Entry> entries;
+    private final Executor executor;
+    private final LongFunction<? extends MessageChannel> channelLookup;
+    private final long timeToLiveNanos;
+    private final TreeMap<Long, Integer> fetchesInFlight = new TreeMap<>();
+    private final Map<Long, Long> invalidatedAt = new HashMap<>();
+    private long modificationCount = 0;
+
+    public MessageCache(final Executor executor, final LongFunction<? extends MessageChannel> channelLookup, final int maximumSize, final long timeToLiveMillis) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, Entry> eldest) {
+                return size() > maximumSize;
+            }
+        };
+        this.executor = executor;
+        this.channelLookup = channelLookup;
+        this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+    }
+
+    private boolean isFresh(final @Nullable Entry entry) {
+        return entry != null && System.nanoTime() - entry.created() <= timeToLiveNanos;
+    }
+
+    // Each fetch remembers when it started, so an update or delete that races with it discards only the invalidated
+    // message instead of everything fetched meanwhile. Invalidations are kept only while an older fetch is in flight.
+    private synchronized long beginFetch() {
+        fetchesInFlight.merge(modificationCount, 1, Integer::sum);
+        return modificationCount;
+    }
+
+    private synchronized void endFetch(final long stamp) {
+        fetchesInFlight.computeIfPresent(stamp, (key, count) -> count == 1 ? null : count - 1);
+        if (fetchesInFlight.isEmpty()) {
+            invalidatedAt.clear();
+        } else if (fetchesInFlight.firstKey() > stamp) {
+            final long oldest = fetchesInFlight.firstKey();
+            invalidatedAt.values().removeIf(invalidation -> invalidation <= oldest);
+        }
+    }
+
+    private boolean invalidatedSince(final long messageId, final long stamp) {
+        return invalidatedAt.getOrDefault(messageId, 0L) > stamp;
+    }
+
+    // Empty if the channel is not visible to any shard or the message is known to be deleted
+    public CompletableFuture<Optional<Message>> retrieve(final long channelId, final long messageId) {
+        final MessageChannel channel = channelLookup.apply(channelId);
+        if (channel == null)
+            return CompletableFuture.completedFuture(Optional.empty());
+        synchronized (this) {
+            final Entry entry = entries.get(messageId);
+            if (isFresh(entry) && entry.message() == null) {
+                hits.increment();
+                return CompletableFuture.completedFuture(Optional.empty());
+            }
+        }
+        return retrieve(channel, messageId).handle((message, t) -> {
+            if (t == null)
+                return Optional.of(message);
+            final Throwable cause = t instanceof CompletionException ? t.getCause() : t;
+            // Only a message Discord reports as unknown counts as deleted, any other failure is left to the caller
+            if (!(cause instanceof ErrorResponseException e) || e.getErrorResponse() != ErrorResponse.UNKNOWN_MESSAGE)
+                throw t instanceof CompletionException completionException ? completionException : new CompletionException(t);
+            synchronized (this) {
+                entries.put(messageId, new Entry(null, System.nanoTime()));
+            }
+            return Optional.empty();
+        });
+    }
+
+    public CompletableFuture<Message> retrieve(final MessageChannel channel, final long messageId) {
+        final long stamp;
+        synchronized (this) {
+            final Entry entry = entries.get(messageId);
+            if (isFresh(entry)) {
+                hits.increment();
+                if (entry.message() == null)
+                    return CompletableFuture.failedFuture(new NoSuchElementException("Message " + messageId + " has been deleted"));
+                return CompletableFuture.completedFuture(entry.message());
+            }
+            if (entry != null)
+                entries.remove(messageId);
+            misses.increment();
+            stamp = beginFetch();
+        }
+        return CompletableFuture.supplyAsync(() -> ExceptionUtil.wrap(RateLimitedException.class, () -> {
+            final Message message = channel.retrieveMessageById(messageId).complete(true);
+            synchronized (this) {
+                // An update or delete that raced with the fetch wins over the possibly stale result
+                if (!invalidatedSince(messageId, stamp))
+                    entries.put(messageId, new Entry(message, System.nanoTime()));
+            }
+            return message;
+        }, CompletionException::new), executor).whenComplete((r, t) -> endFetch(stamp));
+    }
+
+    // Fetches the given messages of one channel with as few requests as possible. Each history request returns up to
+    // 100 consecutive messages, so ids close together share one. Ids missing from the history are cached as deleted.
+    public CompletableFuture<Void> prefetch(final long channelId, final Collection<Long> messageIds, final Runnable beforeRequest) {
+        final MessageChannel channel = channelLookup.apply(channelId);
+        if (channel == null)
+            return CompletableFuture.completedFuture(null);
+        final long[] missing;
+        final long stamp;
+        synchronized (this) {
+            missing = messageIds.stream().mapToLong(Long::longValue).filter(id -> !isFresh(entries.get(id))).sorted().distinct().toArray();
+            if (missing.length == 0)
+                return CompletableFuture.completedFuture(null);
+            stamp = beginFetch();
+        }
+        return CompletableFuture.runAsync(() -> {
+            int index = 0;
+            while (index < missing.length) {
+                beforeRequest.run();
+                final String after = Long.toUnsignedString(missing[index] - 1);
+                final List<Message> history = ExceptionUtil.wrap(RateLimitedException.class, () -> MessageHistory.getHistoryAfter(channel, after).limit(HISTORY_LIMIT).complete(true).getRetrievedHistory(), CompletionException::new);
+                historyRequests.increment();
+                final Map<Long, Message> byId = new HashMap<>(history.size() * 2);
+                long newest = 0;
+                for (final Message message : history) {
+                    byId.put(message.getIdLong(), message);
+                    newest = Math.max(newest, message.getIdLong());
+                }
+                // A short page means the channel has nothing newer, so every id still missing was deleted
+                final boolean exhausted = history.size() < HISTORY_LIMIT;
+                synchronized (this) {
+                    final long now = System.nanoTime();
+                    while (index < missing.length && (exhausted || missing[index] <= newest)) {
+                        // Ids invalidated meanwhile are left uncached and fetched on their own when needed
+                        if (!invalidatedSince(missing[index], stamp)) {
+                            entries.put(missing[index], new Entry(byId.get(missing[index]), now));
+                            historyResolved.increment();
+                        }
+                        index++;
+                    }
+                }
+            }
+        }, executor).whenComplete((r, t) -> endFetch(stamp));
+    }
+
+    public synchronized void invalidate(final long messageId) {
+        modificationCount++;
+        if (!fetchesInFlight.isEmpty())
+            invalidatedAt.put(messageId, modificationCount);
+        entries.remove(messageId);
+    }
+
+    public synchronized CacheStatistics statistics() {
+        return new CacheStatistics("Message cache", hits.sum(), misses.sum(), entries.size());
+    }
+
+    public String describeHistoryFetches() {
+        return "Message history: " + historyRequests.sum() + " requests resolved " + historyResolved.sum() + " messages";
+    }
+
+    // A null message marks one known to be deleted
+    private record Entry(@Nullable Message message, long created) {
+    }
+}
@@ -0,0 +1,175 @@
+package me.pompompopi.star2.sharding;
+
+import me.pompompopi.star2.Star2;
+import me.pompompopi.star2.database.ShardLeaseStore;
+import me.pompompopi.star2.util.ExceptionUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+// Claims a fair share of the gateway shards through leases in the database. Shards are started as their lease is won
+// and stopped when it is lost or handed over to a process that has just joined, so each shard runs in one process.
+public final class ShardLeaseCoordinator {
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder handedOver = new LongAdder();
+    private final Map<Integer, Lease> leases = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "star2-shard-leases");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ShardLeaseStore store;
+    private final int shardsTotal;
+    private final long leaseDuration;
+    private final long heartbeatInterval;
+    private volatile IntConsumer onAcquired = shardId -> {
+    };
+    private volatile IntConsumer onLost = shardId -> {
+    };
+    private volatile int liveProcesses = 1;
+
+    public ShardLeaseCoordinator(final ShardLeaseStore store, final int shardsTotal, final long leaseDuration) {
+        this.store = store;
+        this.shardsTotal = shardsTotal;
+        this.leaseDuration = leaseDuration;
+        this.heartbeatInterval = leaseDuration / 3;
+    }
+
+    // A process started while every shard is leased elsewhere waits here as a standby
+    public List<Integer> awaitInitialLeases() throws InterruptedException {
+        while (true) {
+            heartbeat();
+            if (!leases.isEmpty()) {
+                final List<Integer> shardIds = new ArrayList<>(leases.keySet());
+                Collections.sort(shardIds);
+                return shardIds;
+            }
+            Star2.LOGGER.info("Every shard is leased by another process, waiting as a standby");
+            Thread.sleep(heartbeatInterval);
+        }
+    }
+
+    public void start(final IntConsumer onAcquired, final IntConsumer onLost) {
+        this.onAcquired = onAcquired;
+        this.onLost = onLost;
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                heartbeat();
+            } catch (RuntimeException e) {
+                Star2.LOGGER.error("Failed to renew shard leases", e);
+                dropExpired();
+            }
+        }, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void heartbeat() {
+        final long startedAt = System.nanoTime();
+        liveProcesses = Math.max(1, store.heartbeat(leaseDuration).join());
+        for (final Map.Entry<Integer, Lease> entry : List.copyOf(leases.entrySet())) {
+            final int shardId = entry.getKey();
+            final long token = entry.getValue().token();
+            if (store.renew(shardId, token, leaseDuration).join()) {
+                leases.put(shardId, new Lease(token, startedAt));
+                continue;
+            }
+            Star2.LOGGER.warn("Lease on shard {} was taken over by another process", shardId);
+            lose(shardId);
+        }
+        final int fairShare = (shardsTotal + liveProcesses - 1) / liveProcesses;
+        // One shard is handed over per heartbeat, so a joining process takes load gradually
+        if (leases.size() > fairShare) {
+            final int shardId = Collections.max(leases.keySet());
+            final Lease lease = leases.remove(shardId);
+            onLost.accept(shardId);
+            store.release(shardId, lease.token()).join();
+            handedOver.increment();
+            Star2.LOGGER.info("Handed over shard {} to rebalance across {} processes", shardId, liveProcesses);
+        }
+        for (int shardId = 0; shardId < shardsTotal && leases.size() < fairShare; shardId++) {
+            if (leases.containsKey(shardId))
+                continue;
+            final OptionalLong token = store.tryAcquire(shardId, leaseDuration).join();
+            if (token.isEmpty())
+                continue;
+            leases.put(shardId, new Lease(token.getAsLong(), startedAt));
+            acquired.increment();
+            Star2.LOGGER.info("Acquired lease on shard {} with token {}", shardId, token.getAsLong());
+            onAcquired.accept(shardId);
+        }
+    }
+
+    // While the database is unreachable leases cannot be renewed, shards are stopped before another process may take them
+    private synchronized void dropExpired() {
+        for (final Integer shardId : Set.copyOf(leases.keySet())) {
+            if (!holds(shardId)) {
+                Star2.LOGGER.warn("Lease on shard {} could not be renewed in time", shardId);
+                lose(shardId);
+            }
+        }
+    }
+
+    private void lose(final int shardId) {
+        leases.remove(shardId);
+        lost.increment();
+        onLost.accept(shardId);
+    }
+
+    // Answers locally, a lease counts as held until a heartbeat before it could have expired in the database
+    public boolean holds(final int shardId) {
+        final Lease lease = leases.get(shardId);
+        return lease != null && System.nanoTime() - lease.renewedAt() < TimeUnit.MILLISECONDS.toNanos(leaseDuration - heartbeatInterval);
+    }
+
+    public boolean holdsEveryShard() {
+        for (int shardId = 0; shardId < shardsTotal; shardId++) {
+            if (!holds(shardId))
+                return false;
+        }
+        return true;
+    }
+
+    @Nullable
+    public ShardLeaseStore.Fence fence(final int shardId) {
+        final Lease lease = leases.get(shardId);
+        return lease == null ? null : new ShardLeaseStore.Fence(shardId, lease.token());
+    }
+
+    // Checks the fencing token against the database, used before actions that must not be repeated by a new owner
+    public CompletableFuture<Boolean> verify(final int shardId) {
+        final Lease lease = leases.get(shardId);
+        if (lease == null)
+            return CompletableFuture.completedFuture(false);
+        return store.isCurrent(shardId, lease.token());
+    }
+
+    public synchronized void shutdown() {
+        scheduler.shutdownNow();
+        for (final Map.Entry<Integer, Lease> entry : leases.entrySet())
+            ExceptionUtil.ignore(() -> store.release(entry.getKey(), entry.getValue().token()).join());
+        leases.clear();
+        ExceptionUtil.ignore(() -> store.leave().join());
+    }
+
+    @Override
+    public String toString() {
+        final List<Integer> shardIds = new ArrayList<>(leases.keySet());
+        Collections.sort(shardIds);
+        return "Shard leases: holding " + shardIds + " of " + shardsTotal + " as " + store.getOwner() + " with " + liveProcesses + " processes alive, " + acquired.sum() + " acquired, " + lost.sum() + " lost, " + handedOver.sum() + " handed over";
+    }
+
+    private record Lease(long token, long renewedAt) {
+    }
+}
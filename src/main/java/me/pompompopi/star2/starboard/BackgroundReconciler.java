@@ -0,0 +1,111 @@
+package me.pompompopi.star2.starboard;
+
+import me.pompompopi.star2.Star2;
+import me.pompompopi.star2.config.Configuration;
+import me.pompompopi.star2.database.DatabaseRow;
+import me.pompompopi.star2.database.StarboardStore;
+import me.pompompopi.star2.messages.MessageCache;
+import me.pompompopi.star2.util.RateLimiter;
+import net.dv8tion.jda.api.utils.TimeUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+
+// Steadily re-verifies the counts of recent entries, a few at a time, so counts left stale by missed gateway events
+// are corrected without a full recount. It sweeps faster while it keeps finding drift and slows down while it finds
+// none, and skips its turn while a full recount runs or live starboard work is queued.
+public final class BackgroundReconciler {
+    private static final int MAXIMUM_BACKLOG = 10;
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder corrected = new LongAdder();
+    private final StarboardChannelManager starboardChannelManager;
+    private final StarboardStore starboardStore;
+    private final MessageCache messageCache;
+    private final RecountEngine recountEngine;
+    private final RateLimiter restBudget;
+    private final long window;
+    private final long minimumInterval;
+    private final long maximumInterval;
+    private final int batchSize;
+    private volatile long interval;
+    private volatile long cursor;
+
+    public BackgroundReconciler(final StarboardChannelManager starboardChannelManager, final StarboardStore starboardStore, final MessageCache messageCache, final RecountEngine recountEngine, final Configuration configuration) {
+        this.starboardChannelManager = starboardChannelManager;
+        this.starboardStore = starboardStore;
+        this.messageCache = messageCache;
+        this.recountEngine = recountEngine;
+        this.restBudget = recountEngine.restBudget();
+        this.window = configuration.getReconcileWindow();
+        this.minimumInterval = configuration.getReconcileMinimumInterval();
+        this.maximumInterval = configuration.getReconcileMaximumInterval();
+        this.batchSize = configuration.getReconcileBatchSize();
+        this.interval = maximumInterval;
+    }
+
+    public void start(final Star2 star2) {
+        if (window == 0)
+            return;
+        Thread.ofVirtual().name("star2-reconciler").start(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    sweep(star2);
+                } catch (RuntimeException e) {
+                    Star2.LOGGER.error("Background reconciliation failed", e);
+                    interval = maximumInterval;
+                }
+            }
+        });
+    }
+
+    private void sweep(final Star2 star2) {
+        if (recountEngine.isRunning() || starboardChannelManager.outboundBacklog() > MAXIMUM_BACKLOG)
+            return;
+        // Snowflakes are ordered by creation time, so the window starts at the first snowflake of its oldest millisecond
+        final long windowStart = TimeUtil.getDiscordTimestamp(System.currentTimeMillis() - window);
+        if (cursor < windowStart)
+            cursor = windowStart;
+        final List<DatabaseRow> batch = starboardStore.getBoardEntriesAfter(cursor, batchSize).join();
+        if (batch.isEmpty()) {
+            cursor = windowStart;
+            interval = maximumInterval;
+            return;
+        }
+        try {
+            DatabaseRow.prefetchMessages(batch, messageCache, restBudget::acquire).join();
+        } catch (CompletionException e) {
+            Star2.LOGGER.warn("Failed to prefetch messages for background reconciliation", e.getCause());
+        }
+        final List<CompletableFuture<Boolean>> results = new ArrayList<>(batch.size());
+        for (final DatabaseRow row : batch)
+            results.add(starboardChannelManager.recalculateEntry(star2, row.originalMessageId(), false, restBudget));
+        int drifted = 0;
+        for (final CompletableFuture<Boolean> result : results) {
+            try {
+                if (result.join())
+                    drifted++;
+            } catch (CompletionException e) {
+                Star2.LOGGER.warn("Failed to reconcile starboard entry", e.getCause());
+            }
+        }
+        checked.add(batch.size());
+        corrected.add(drifted);
+        cursor = batch.getLast().originalMessageId();
+        interval = drifted > 0 ? Math.max(minimumInterval, interval / 2) : Math.min(maximumInterval, interval + interval / 4 + 1);
+    }
+
+    @Override
+    public String toString() {
+        if (window == 0)
+            return "Background reconciler: disabled";
+        return "Background reconciler: " + checked.sum() + " entries checked, " + corrected.sum() + " corrected, next batch in " + interval + "ms";
+    }
+}
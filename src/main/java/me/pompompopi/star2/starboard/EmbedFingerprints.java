@@ -0,0 +1,69 @@
+package me.pompompopi.star2.starboard;
+
+import net.dv8tion.jda.api.entities.MessageEmbed;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Remembers a hash of the embeds last sent for each entry so an edit that would render identically is not sent
+final class EmbedFingerprints {
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final Map<Long, Long> fingerprints;
+
+    EmbedFingerprints(final int maximumSize) {
+        this.fingerprints = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, Long> eldest) {
+                return size() > maximumSize;
+            }
+        };
+    }
+
+    static long fingerprint(final Collection<MessageEmbed> embeds) {
+        long hash = FNV_OFFSET_BASIS;
+        for (final MessageEmbed embed : embeds) {
+            final String data = embed.toData().toString();
+            for (int i = 0; i < data.length(); i++) {
+                hash ^= data.charAt(i);
+                hash *= FNV_PRIME;
+            }
+            hash ^= 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    // Records the fingerprint and returns whether it differs from the last one sent for this entry
+    synchronized boolean update(final long originalMessageId, final long fingerprint) {
+        final Long previous = fingerprints.put(originalMessageId, fingerprint);
+        if (previous != null && previous == fingerprint) {
+            skipped.increment();
+            return false;
+        }
+        sent.increment();
+        return true;
+    }
+
+    synchronized void record(final long originalMessageId, final long fingerprint) {
+        fingerprints.put(originalMessageId, fingerprint);
+    }
+
+    // Used when an edit fails, so that the same output is sent again next time
+    synchronized void forget(final long originalMessageId, final long fingerprint) {
+        fingerprints.remove(originalMessageId, fingerprint);
+    }
+
+    synchronized void forget(final long originalMessageId) {
+        fingerprints.remove(originalMessageId);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Embed fingerprints: " + sent.sum() + " edits sent, " + skipped.sum() + " identical edits skipped, " + fingerprints.size() + " entries";
+    }
+}
@@ -0,0 +1,173 @@
+package me.pompompopi.star2.starboard;
+
+import me.pompompopi.star2.Star2;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.requests.RestAction;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+// Orders requests to the starboard channel by priority, only a few are handed to JDA at once so later live
+// activity can still overtake queued background work instead of waiting behind it in JDA's own bucket queue
+final class OutboundScheduler {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Deque<Task>[] queues;
+    private final Map<Long, Task> queuedEdits = new HashMap<>();
+    private final LongAdder mergedEdits = new LongAdder();
+    private final Semaphore inFlight;
+
+    @SuppressWarnings("unchecked")
+    OutboundScheduler(final int concurrency) {
+        this.queues = new Deque[Priority.values().length];
+        for (int i = 0; i < queues.length; i++)
+            queues[i] = new ArrayDeque<>();
+        this.inFlight = new Semaphore(concurrency);
+        Thread.ofVirtual().name("star2-outbound").start(this::dispatch);
+    }
+
+    <T> CompletableFuture<T> submit(final Priority priority, final Supplier<? extends RestAction<T>> action) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        enqueue(new Task(priority, -1, () -> start(action, result), null));
+        return result;
+    }
+
+    // An edit to a starboard message that already has one queued replaces it, only the latest render is sent
+    CompletableFuture<Message> edit(final Priority priority, final long starboardMessageId, final Supplier<? extends RestAction<Message>> action) {
+        lock.lock();
+        try {
+            final Task queued = queuedEdits.get(starboardMessageId);
+            if (queued != null) {
+                mergedEdits.increment();
+                queued.start = () -> start(action, queued.edited);
+                if (priority.ordinal() < queued.priority.ordinal()) {
+                    queues[queued.priority.ordinal()].remove(queued);
+                    queued.priority = priority;
+                    queues[priority.ordinal()].addLast(queued);
+                }
+                return queued.edited;
+            }
+            final CompletableFuture<Message> edited = new CompletableFuture<>();
+            final Task task = new Task(priority, starboardMessageId, () -> start(action, edited), edited);
+            queuedEdits.put(starboardMessageId, task);
+            queues[priority.ordinal()].addLast(task);
+            notEmpty.signal();
+            return edited;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static <T> CompletableFuture<?> start(final Supplier<? extends RestAction<T>> action, final CompletableFuture<T> result) {
+        try {
+            return action.get().submit().whenComplete((r, t) -> {
+                if (t != null)
+                    result.completeExceptionally(t);
+                else
+                    result.complete(r);
+            });
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private void enqueue(final Task task) {
+        lock.lock();
+        try {
+            queues[task.priority.ordinal()].addLast(task);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Task take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                for (final Deque<Task> queue : queues) {
+                    final Task task = queue.pollFirst();
+                    if (task == null)
+                        continue;
+                    if (task.editKey != -1)
+                        queuedEdits.remove(task.editKey);
+                    return task;
+                }
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dispatch() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                inFlight.acquire();
+                final Task task = take();
+                try {
+                    task.start.get().whenComplete((r, t) -> inFlight.release());
+                } catch (RuntimeException e) {
+                    inFlight.release();
+                    Star2.LOGGER.error("Failed to start outbound starboard request", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    int queued() {
+        lock.lock();
+        try {
+            int queued = 0;
+            for (final Deque<Task> queue : queues)
+                queued += queue.size();
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "Outbound scheduler: " + Arrays.stream(Priority.values()).map(priority -> priority.name().toLowerCase() + "=" + queues[priority.ordinal()].size()).collect(Collectors.joining(", ")) + " queued, " + mergedEdits.sum() + " edits merged";
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    enum Priority {
+        CREATE,
+        EDIT,
+        DELETE,
+        BACKGROUND
+    }
+
+    private static final class Task {
+        private final long editKey;
+        private final CompletableFuture<Message> edited;
+        private Priority priority;
+        private Supplier<CompletableFuture<?>> start;
+
+        private Task(final Priority priority, final long editKey, final Supplier<CompletableFuture<?>> start, final CompletableFuture<Message> edited) {
+            this.priority = priority;
+            this.editKey = editKey;
+            this.start = start;
+            this.edited = edited;
+        }
+    }
+}
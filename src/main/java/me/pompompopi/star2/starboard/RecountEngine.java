@@ -0,0 +1,179 @@
+package me.pompompopi.star2.starboard;
+
+import me.pompompopi.star2.Star2;
+import me.pompompopi.star2.config.Configuration;
+import me.pompompopi.star2.database.DatabaseRow;
+import me.pompompopi.star2.database.StarboardStore;
+import me.pompompopi.star2.messages.MessageCache;
+import me.pompompopi.star2.util.RateLimiter;
+
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Recounts every entry a page at a time with a bounded number in flight and a budget of REST calls per second, so
+// live reactions keep most of the rate limit. Progress is checkpointed and an interrupted recount resumes on startup.
+public final class RecountEngine {
+    private static final int PAGE_SIZE = 100;
+    private static final long CHECKPOINT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private final StarboardChannelManager starboardChannelManager;
+    private final StarboardStore starboardStore;
+    private final MessageCache messageCache;
+    private final int concurrency;
+    private final RateLimiter restBudget;
+    private volatile Run current;
+
+    public RecountEngine(final StarboardChannelManager starboardChannelManager, final StarboardStore starboardStore, final MessageCache messageCache, final Configuration configuration) {
+        this.starboardChannelManager = starboardChannelManager;
+        this.starboardStore = starboardStore;
+        this.messageCache = messageCache;
+        this.concurrency = configuration.getRecountConcurrency();
+        this.restBudget = new RateLimiter(configuration.getRecountRestBudget());
+    }
+
+    private static String jobName(final boolean redo) {
+        return redo ? "recount-redo" : "recount";
+    }
+
+    // Picks up a recount that was still running when the process stopped
+    public void resume(final Star2 star2) {
+        for (final boolean redo : new boolean[]{false, true}) {
+            final OptionalLong checkpoint = starboardStore.loadJobCheckpoint(jobName(redo)).join();
+            if (checkpoint.isEmpty())
+                continue;
+            Star2.LOGGER.info("Resuming {} after entry {}", jobName(redo), checkpoint.getAsLong());
+            start(star2, redo, checkpoint.getAsLong());
+            return;
+        }
+    }
+
+    // Returns false if a recount is already running
+    public boolean start(final Star2 star2, final boolean redo) {
+        return start(star2, redo, 0);
+    }
+
+    private synchronized boolean start(final Star2 star2, final boolean redo, final long after) {
+        if (current != null && !current.finished)
+            return false;
+        final Run run = new Run(redo, after);
+        current = run;
+        Thread.ofVirtual().name("star2-recount").start(() -> run(star2, run));
+        return true;
+    }
+
+    // Background reconciliation draws from the same budget, together they stay within RECOUNT_REST_BUDGET
+    RateLimiter restBudget() {
+        return restBudget;
+    }
+
+    public boolean isRunning() {
+        final Run run = current;
+        return run != null && !run.finished;
+    }
+
+    public boolean cancel() {
+        final Run run = current;
+        if (run == null || run.finished)
+            return false;
+        run.cancelled = true;
+        return true;
+    }
+
+    private void run(final Star2 star2, final Run run) {
+        final String job = jobName(run.redo);
+        final Semaphore inFlight = new Semaphore(concurrency);
+        final ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<>();
+        try {
+            starboardStore.clearJobCheckpoint(jobName(!run.redo)).join();
+            run.total = starboardStore.countBoardEntriesAfter(run.after).join();
+            long after = run.after;
+            long checkpointedAt = System.nanoTime();
+            while (!run.cancelled) {
+                final List<DatabaseRow> page = starboardStore.getBoardEntriesAfter(after, PAGE_SIZE).join();
+                if (page.isEmpty())
+                    break;
+                prefetch(page);
+                for (final DatabaseRow row : page) {
+                    if (run.cancelled)
+                        break;
+                    inFlight.acquireUninterruptibly();
+                    final long originalMessageId = row.originalMessageId();
+                    pending.add(originalMessageId);
+                    starboardChannelManager.recalculateEntry(star2, originalMessageId, run.redo, restBudget).whenComplete((r, t) -> {
+                        if (t != null) {
+                            run.failed.increment();
+                            Star2.LOGGER.error("Failed to recount entry {}", originalMessageId, t);
+                        }
+                        run.done.increment();
+                        pending.remove(originalMessageId);
+                        inFlight.release();
+                    });
+                }
+                after = page.getLast().originalMessageId();
+                if (System.nanoTime() - checkpointedAt >= CHECKPOINT_INTERVAL_NANOS) {
+                    // Every entry before the oldest one still in flight is done
+                    final Long oldestPending = pending.ceiling(Long.MIN_VALUE);
+                    starboardStore.storeJobCheckpoint(job, oldestPending == null ? after : oldestPending - 1).join();
+                    checkpointedAt = System.nanoTime();
+                }
+            }
+            inFlight.acquireUninterruptibly(concurrency);
+            starboardStore.flushStarUpdates().join();
+            starboardStore.clearJobCheckpoint(job).join();
+            Star2.LOGGER.info("{} {} after {} entries, {} failed", job, run.cancelled ? "cancelled" : "finished", run.done.sum(), run.failed.sum());
+        } catch (RuntimeException e) {
+            Star2.LOGGER.error("{} failed, it resumes from its last checkpoint on restart", job, e);
+        } finally {
+            run.finished = true;
+        }
+    }
+
+    // The page's messages are fetched together by channel, entries whose prefetch failed fall back to single fetches
+    private void prefetch(final List<DatabaseRow> page) {
+        try {
+            DatabaseRow.prefetchMessages(page, messageCache, restBudget::acquire).join();
+        } catch (CompletionException e) {
+            Star2.LOGGER.warn("Failed to prefetch messages for recount", e.getCause());
+        }
+    }
+
+    public String status() {
+        final Run run = current;
+        if (run == null)
+            return "Recount: none since startup";
+        final long done = run.done.sum();
+        final long elapsedNanos = System.nanoTime() - run.startedAt;
+        final double rate = elapsedNanos == 0 ? 0 : done * 1e9 / elapsedNanos;
+        final String state = run.finished ? (run.cancelled ? "cancelled" : "finished") : (run.cancelled ? "cancelling" : "running");
+        final StringBuilder status = new StringBuilder(run.redo ? "Redo: " : "Recount: ")
+                .append(state).append(", ")
+                .append(done).append("/").append(run.total).append(" entries, ")
+                .append(String.format("%.1f", rate)).append(" entries/s, ")
+                .append(run.failed.sum()).append(" failed");
+        if (!run.finished && rate > 0) {
+            final long remainingSeconds = (long) (Math.max(0, run.total - done) / rate);
+            status.append(", ETA ").append(String.format("%dh %02dm %02ds", remainingSeconds / 3600, remainingSeconds % 3600 / 60, remainingSeconds % 60));
+        }
+        return status.toString();
+    }
+
+    private static final class Run {
+        private final LongAdder done = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final long startedAt = System.nanoTime();
+        private final boolean redo;
+        private final long after;
+        private volatile long total;
+        private volatile boolean cancelled;
+        private volatile boolean finished;
+
+        private Run(final boolean redo, final long after) {
+            this.redo = redo;
+            this.after = after;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package me.pompompopi.star2.starboard;
+
+import me.pompompopi.star2.util.LongMultiset;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.emoji.Emoji;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Tracks who starred a message from gateway reaction deltas so that a new star does not re-list every reactor over REST
+public final class StarCounter {
+    private final LongAdder deltaCounts = new LongAdder();
+    private final LongAdder listings = new LongAdder();
+    private final Map<Long, Tally> tallies;
+    private final Executor executor;
+    private final long reconcileIntervalNanos;
+
+    public StarCounter(final Executor executor, final int maximumSize, final long reconcileIntervalMillis) {
+        this.tallies = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, Tally> eldest) {
+                return size() > maximumSize;
+            }
+        };
+        this.executor = executor;
+        this.reconcileIntervalNanos = TimeUnit.MILLISECONDS.toNanos(reconcileIntervalMillis);
+    }
+
+    public synchronized void add(final long messageId, final long userId) {
+        final Tally tally = tallies.get(messageId);
+        if (tally != null)
+            tally.apply(userId, true);
+    }
+
+    public synchronized void remove(final long messageId, final long userId) {
+        final Tally tally = tallies.get(messageId);
+        if (tally != null)
+            tally.apply(userId, false);
+    }
+
+    public synchronized void forget(final long messageId) {
+        tallies.remove(messageId);
+    }
+
+    // Answers from the tracked reactors when possible, otherwise lists them once and tracks deltas from then on
+    public CompletableFuture<Long> count(final Message message, final Emoji starEmoji) {
+        return count(message, starEmoji, false);
+    }
+
+    // Always lists every reactor, correcting any drift from missed gateway events
+    public CompletableFuture<Long> reconcile(final Message message, final Emoji starEmoji) {
+        return count(message, starEmoji, true);
+    }
+
+    private CompletableFuture<Long> count(final Message message, final Emoji starEmoji, final boolean reconcile) {
+        final long messageId = message.getIdLong();
+        final Tally tally;
+        final CompletableFuture<Long> listing = new CompletableFuture<>();
+        synchronized (this) {
+            final Tally existing = tallies.get(messageId);
+            if (existing != null && existing.listing != null)
+                return existing.listing;
+            if (existing != null && !reconcile && System.nanoTime() - existing.listedAt <= reconcileIntervalNanos) {
+                deltaCounts.increment();
+                return CompletableFuture.completedFuture((long) existing.reactors.size());
+            }
+            tally = new Tally(message.getAuthor().getIdLong());
+            tally.listing = listing;
+            tallies.put(messageId, tally);
+        }
+        listings.increment();
+        CompletableFuture.supplyAsync(() -> {
+            final LongMultiset reactors = new LongMultiset();
+            message.retrieveReactionUsers(starEmoji).forEach(user -> {
+                if (user.getIdLong() != tally.authorId)
+                    reactors.add(user.getIdLong());
+            });
+            return reactors;
+        }, executor).whenComplete((reactors, t) -> {
+            final long count;
+            synchronized (this) {
+                tally.listing = null;
+                if (t != null) {
+                    tallies.remove(messageId, tally);
+                    count = -1;
+                } else {
+                    count = tally.seed(reactors);
+                }
+            }
+            if (t != null)
+                listing.completeExceptionally(t);
+            else
+                listing.complete(count);
+        });
+        return listing;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Star counter: " + tallies.size() + " tracked messages, " + deltaCounts.sum() + " counts from deltas, " + listings.sum() + " full listings";
+    }
+
+    private static final class Tally {
+        private final long authorId;
+        private LongMultiset reactors = new LongMultiset();
+        // Deltas that arrive while the listing is in flight, replayed on top of it since the listing may predate them
+        private final Map<Long, Boolean> pendingDeltas = new HashMap<>();
+        private CompletableFuture<Long> listing;
+        private long listedAt;
+
+        private Tally(final long authorId) {
+            this.authorId = authorId;
+        }
+
+        private void apply(final long userId, final boolean added) {
+            if (userId == authorId)
+                return;
+            if (listing != null) {
+                pendingDeltas.put(userId, added);
+                return;
+            }
+            if (added && !reactors.contains(userId))
+                reactors.add(userId);
+            else if (!added)
+                reactors.remove(userId);
+        }
+
+        private long seed(final LongMultiset listed) {
+            this.reactors = listed;
+            this.listedAt = System.nanoTime();
+            pendingDeltas.forEach(this::apply);
+            pendingDeltas.clear();
+            return reactors.size();
+        }
+    }
+}
@@ -2,146 +2,291 @@ package me.pompompopi.star2.starboard;
 
 import me.pompompopi.star2.Star2;
 import me.pompompopi.star2.config.Configuration;
-import me.pompompopi.star2.database.DatabaseConnection;
+import me.pompompopi.star2.config.GuildSettings;
+import me.pompompopi.star2.config.GuildSettingsRegistry;
 import me.pompompopi.star2.database.DatabaseRow;
-import me.pompompopi.star2.util.ExceptionUtil;
+import me.pompompopi.star2.database.ShardLeaseStore;
+import me.pompompopi.star2.database.StarboardStore;
+import me.pompompopi.star2.messages.MessageCache;
+import me.pompompopi.star2.sharding.ShardLeaseCoordinator;
+import me.pompompopi.star2.starboard.OutboundScheduler.Priority;
 import me.pompompopi.star2.util.FuturePool;
+import me.pompompopi.star2.util.KeyedExecutor;
 import me.pompompopi.star2.util.NullableUtil;
-import me.pompompopi.star2.util.Tuple;
+import me.pompompopi.star2.util.RateLimiter;
 import net.dv8tion.jda.api.EmbedBuilder;
-import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.entities.ISnowflake;
 import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.entities.MessageEmbed;
 import net.dv8tion.jda.api.entities.User;
 import net.dv8tion.jda.api.entities.channel.concrete.TextChannel;
+import net.dv8tion.jda.api.sharding.ShardManager;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 public final class StarboardChannelManager {
-    private final DatabaseConnection databaseConnection;
-    private final TextChannel starboardChannel;
-    private final String starRaw;
+    private final StarboardStore starboardStore;
+    private final ShardManager shardManager;
+    private final GuildSettingsRegistry guildSettings;
+    private final Executor executor;
+    private final KeyedExecutor messageExecutor;
+    private final MessageCache messageCache;
+    private final EmbedFingerprints embedFingerprints;
+    private final OutboundScheduler outboundScheduler;
+    private final int rerenderConcurrency;
+    private final @Nullable ShardLeaseCoordinator shardLeases;
 
-    public StarboardChannelManager(final JDA jda, final Configuration configuration, final DatabaseConnection databaseConnection) {
-        this.databaseConnection = databaseConnection;
-        this.starboardChannel = jda.getTextChannelById(configuration.getStarboardChannel());
-        this.starRaw = configuration.getStarEmoji();
+    public StarboardChannelManager(final ShardManager shardManager, final GuildSettingsRegistry guildSettings, final @Nullable ShardLeaseCoordinator shardLeases, final Configuration configuration, final StarboardStore starboardStore, final Executor executor, final KeyedExecutor messageExecutor, final MessageCache messageCache) {
+        this.starboardStore = starboardStore;
+        this.shardManager = shardManager;
+        this.guildSettings = guildSettings;
+        this.shardLeases = shardLeases;
+        this.executor = executor;
+        this.messageExecutor = messageExecutor;
+        this.messageCache = messageCache;
+        this.embedFingerprints = new EmbedFingerprints(configuration.getBoardEntryCacheSize());
+        this.outboundScheduler = new OutboundScheduler(configuration.getOutboundConcurrency());
+        this.rerenderConcurrency = configuration.getRerenderConcurrency();
     }
 
+    @Nullable
+    private TextChannel starboardChannelFor(final long guildId) {
+        final GuildSettings settings = guildSettings.get(guildId);
+        return settings == null ? null : shardManager.getTextChannelById(settings.starboardChannelId());
+    }
+
+    // Rows from before rows were keyed by guild fall back to the guild of the channel they were posted in
+    private long guildIdOf(final DatabaseRow row) {
+        if (row.guildId() != 0)
+            return row.guildId();
+        final TextChannel originalChannel = shardManager.getTextChannelById(row.originalChannelId());
+        return originalChannel == null ? 0 : originalChannel.getGuild().getIdLong();
+    }
+
+    // Completes only once the entry is stored, so the next task for this message sees it
     private CompletableFuture<Void> createEntry(final Message message, final @Nullable Message referencedMessage, final short stars) {
-        return CompletableFuture.runAsync(() -> starboardChannel.sendMessageEmbeds(createEmbed(message, referencedMessage, stars)).queue(starboardMessage -> ExceptionUtil.handleExceptionAndLog(databaseConnection.addBoardEntry(message.getIdLong(), message.getChannel().getIdLong(), message.getAuthor().getIdLong(), starboardMessage.getIdLong(), NullableUtil.mapFromPossiblyNull(referencedMessage, ISnowflake::getIdLong), NullableUtil.mapFromPossiblyNull(referencedMessage, referencedMessageAct -> referencedMessageAct.getAuthor().getIdLong()), stars), "create entry")));
+        final long guildId = message.getGuild().getIdLong();
+        final TextChannel starboardChannel = starboardChannelFor(guildId);
+        if (starboardChannel == null)
+            return CompletableFuture.failedFuture(new IllegalStateException("Guild " + guildId + " has no starboard channel"));
+        // A process whose lease was taken over while it was paused must not post the same entry as the new owner
+        final int shardId = message.getJDA().getShardInfo().getShardId();
+        final ShardLeaseStore.Fence fence = shardLeases == null ? null : shardLeases.fence(shardId);
+        if (shardLeases != null && (fence == null || !shardLeases.verify(shardId).join()))
+            return CompletableFuture.failedFuture(new IllegalStateException("Lease on shard " + shardId + " is no longer held"));
+        final Collection<MessageEmbed> embeds = createEmbed(message, referencedMessage, stars);
+        embedFingerprints.record(message.getIdLong(), EmbedFingerprints.fingerprint(embeds));
+        return outboundScheduler.submit(Priority.CREATE, () -> starboardChannel.sendMessageEmbeds(embeds)).thenComposeAsync(starboardMessage -> starboardStore.addBoardEntry(guildId, message.getIdLong(), message.getChannel().getIdLong(), message.getAuthor().getIdLong(), starboardMessage.getIdLong(), NullableUtil.mapFromPossiblyNull(referencedMessage, ISnowflake::getIdLong), NullableUtil.mapFromPossiblyNull(referencedMessage, referencedMessageAct -> referencedMessageAct.getAuthor().getIdLong()), stars, fence).<Void>handle((stored, t) -> {
+            if (t == null && stored)
+                return null;
+            // Without a row behind it the posted message would be posted again on the next reaction, so it is removed
+            // whether the lease was taken over meanwhile or the insert failed
+            embedFingerprints.forget(message.getIdLong());
+            outboundScheduler.submit(Priority.DELETE, () -> starboardChannel.deleteMessageById(starboardMessage.getIdLong()));
+            if (t != null)
+                throw t instanceof CompletionException completionException ? completionException : new CompletionException(t);
+            throw new IllegalStateException("Lease on shard " + shardId + " was lost while posting the entry");
+        }), executor);
+    }
+
+    private CompletableFuture<Void> updateEntry(final Message message, final @Nullable Message referencedMessage, final short stars, final DatabaseRow databaseRow, final Priority priority) {
+        return updateEntry(message, referencedMessage, stars, databaseRow, priority, null);
     }
 
-    private CompletableFuture<Void> updateEntry(final Message message, final @Nullable Message referencedMessage, final short stars, final DatabaseRow databaseRow) {
+    private CompletableFuture<Void> updateEntry(final Message message, final @Nullable Message referencedMessage, final short stars, final DatabaseRow databaseRow, final Priority priority, final @Nullable User updatedAuthor) {
         return CompletableFuture.runAsync(() -> {
             final long originalMessageId = message.getIdLong();
             if (stars != -1 && (stars != databaseRow.stars()))
-                databaseConnection.updateStars(originalMessageId, stars).join();
-            starboardChannel.editMessageEmbedsById(databaseRow.starboardMessageId(), createEmbed(message, referencedMessage, stars == -1 ? databaseRow.stars() : stars)).queue();
-        });
+                starboardStore.updateStars(originalMessageId, stars).join();
+            final TextChannel starboardChannel = starboardChannelFor(message.getGuild().getIdLong());
+            if (starboardChannel == null)
+                return;
+            final Collection<MessageEmbed> embeds = createEmbed(message, referencedMessage, stars == -1 ? databaseRow.stars() : stars, updatedAuthor);
+            final long fingerprint = EmbedFingerprints.fingerprint(embeds);
+            if (!embedFingerprints.update(originalMessageId, fingerprint))
+                return;
+            outboundScheduler.edit(priority, databaseRow.starboardMessageId(), () -> starboardChannel.editMessageEmbedsById(databaseRow.starboardMessageId(), embeds)).whenComplete((edited, t) -> {
+                if (t != null)
+                    embedFingerprints.forget(originalMessageId, fingerprint);
+            });
+        }, executor);
     }
 
     public CompletableFuture<Boolean> updateOrCreateEntry(final Message message, final @Nullable Message referencedMessage, final short stars) {
-        return updateOrCreateEntry0(message, referencedMessage, stars, true);
+        return updateOrCreateEntry0(message, referencedMessage, stars, true, Priority.EDIT);
     }
 
     public CompletableFuture<Boolean> updateWithoutCreatingEntry(final Message message, final @Nullable Message referencedMessage, final short stars) {
-        return updateOrCreateEntry0(message, referencedMessage, stars, false);
+        return updateOrCreateEntry0(message, referencedMessage, stars, false, Priority.EDIT);
     }
 
-    private CompletableFuture<Boolean> updateOrCreateEntry0(final Message message, final @Nullable Message referencedMessage, final short stars, final boolean create) {
-        return CompletableFuture.supplyAsync(() -> {
-            final Optional<DatabaseRow> databaseRowOpt = databaseConnection.getBoardEntry(message.getIdLong()).join();
+    private CompletableFuture<Boolean> updateOrCreateEntry0(final Message message, final @Nullable Message referencedMessage, final short stars, final boolean create, final Priority priority) {
+        return messageExecutor.submit(message.getIdLong(), () -> {
+            final Optional<DatabaseRow> databaseRowOpt = starboardStore.getBoardEntry(message.getIdLong()).join();
             if (databaseRowOpt.isPresent()) {
-                updateEntry(message, referencedMessage, stars, databaseRowOpt.get()).join();
-                return true;
-            }
-            if (!create) {
-                final Collection<DatabaseRow> inReferenceTo = databaseConnection.getStarboardsInReferenceTo(message.getIdLong()).join();
-                if (inReferenceTo.isEmpty())
-                    return false;
-                final JDA jda = message.getJDA();
-                final FuturePool pool = new FuturePool();
-                for (final DatabaseRow databaseRow : inReferenceTo) {
-                    pool.poolRun(() -> databaseRow.toOriginalMessage(jda).thenAcceptAsync(originalMessageOpt -> {
-                        if (originalMessageOpt.isEmpty())
-                            return;
-                        updateEntry(originalMessageOpt.get(), message, databaseRow.stars(), databaseRow).join();
-                    }));
-                }
-                pool.join();
+                updateEntry(message, referencedMessage, stars, databaseRowOpt.get(), priority).join();
                 return true;
             }
-
+            if (!create)
+                return false;
             createEntry(message, referencedMessage, stars).join();
             return true;
-        });
+        }).thenComposeAsync(handled -> handled || create ? CompletableFuture.completedFuture(handled) : updateRepliesTo(message, priority), executor);
+    }
+
+    // Entries quoting the message are other entries, each is edited under its own key rather than the quoted message's
+    private CompletableFuture<Boolean> updateRepliesTo(final Message referencedMessage, final Priority priority) {
+        return starboardStore.getStarboardsInReferenceTo(referencedMessage.getIdLong()).thenApplyAsync(inReferenceTo -> {
+            if (inReferenceTo.isEmpty())
+                return false;
+            final FuturePool pool = new FuturePool(executor);
+            for (final DatabaseRow databaseRow : inReferenceTo)
+                pool.poolAdd(messageExecutor.submit(databaseRow.originalMessageId(), () -> rerenderReply(databaseRow.originalMessageId(), referencedMessage, priority)));
+            pool.join();
+            return true;
+        }, executor);
+    }
+
+    // The row is read again under the entry's key, the one found through the reference may be outdated by now
+    private Void rerenderReply(final long originalMessageId, final Message referencedMessage, final Priority priority) {
+        final Optional<DatabaseRow> rowOpt = starboardStore.getBoardEntry(originalMessageId).join();
+        if (rowOpt.isEmpty())
+            return null;
+        final Optional<Message> messageOpt = rowOpt.get().toOriginalMessage(messageCache).join();
+        if (messageOpt.isEmpty())
+            return null;
+        updateEntry(messageOpt.get(), referencedMessage, (short) -1, rowOpt.get(), priority).join();
+        return null;
     }
 
     public CompletableFuture<Boolean> removeEntry(final long originalMessageId) {
-        return CompletableFuture.supplyAsync(() -> {
-            final Optional<DatabaseRow> databaseRowOpt = databaseConnection.removeBoardEntry(originalMessageId).join();
+        return removeEntry(originalMessageId, Priority.DELETE);
+    }
+
+    private CompletableFuture<Boolean> removeEntry(final long originalMessageId, final Priority priority) {
+        return messageExecutor.submit(originalMessageId, () -> {
+            final Optional<DatabaseRow> databaseRowOpt = starboardStore.removeBoardEntry(originalMessageId).join();
             if (databaseRowOpt.isEmpty())
                 return false;
             final DatabaseRow databaseRow = databaseRowOpt.get();
-            starboardChannel.deleteMessageById(databaseRow.starboardMessageId()).queue();
+            embedFingerprints.forget(originalMessageId);
+            deleteStarboardMessage(databaseRow, priority);
             return true;
         });
     }
 
-    public CompletableFuture<Void> updateEveryUserEntry(final JDA jda, final long userId) {
-        return databaseConnection.getUserBoardEntries(userId).thenAcceptAsync(rows -> {
-            for (final DatabaseRow row : rows) {
-                final Optional<Message> messageOpt = row.toOriginalMessage(jda).join();
-                if (messageOpt.isEmpty())
-                    continue;
-                final Optional<Message> referencedMessageOpt = row.toReferencedMessage(jda).join();
-                final Message message = messageOpt.get();
-                updateEntry(message, referencedMessageOpt.orElse(null), (short) -1, row);
-            }
-        });
+    private void deleteStarboardMessage(final DatabaseRow row, final Priority priority) {
+        final TextChannel starboardChannel = starboardChannelFor(guildIdOf(row));
+        if (starboardChannel != null)
+            outboundScheduler.submit(priority, () -> starboardChannel.deleteMessageById(row.starboardMessageId()));
     }
 
-    public CompletableFuture<Void> recalculateEveryEntry(final JDA jda, final Star2 star2, final boolean redo) {
-        return databaseConnection.getAllRows().thenAcceptAsync(rows -> {
-            final int minimumStars = star2.getMinimumStars();
-            final FuturePool pool = new FuturePool();
-            final List<Tuple<Short, Long>> starUpdateList = new ArrayList<>();
+    // Re-renders every entry of an author after a name or avatar change. Messages are prefetched by channel and at most
+    // a few entries render at once, the stored star count is reused and the edits queue behind live work.
+    public CompletableFuture<Void> updateEveryUserEntry(final User user) {
+        return starboardStore.getUserBoardEntries(user.getIdLong()).thenAcceptAsync(rows -> {
+            DatabaseRow.prefetchMessages(rows, messageCache, () -> {}).join();
+            final Semaphore inFlight = new Semaphore(rerenderConcurrency);
+            final FuturePool pool = new FuturePool(executor);
             for (final DatabaseRow row : rows) {
-                final long originalMessageId = row.originalMessageId();
-                pool.poolAdd(row.toOriginalMessage(jda).thenCombineAsync(row.toReferencedMessage(jda), Tuple::new).thenAcceptAsync(messageTup -> {
-                    final Optional<Message> messageOpt = messageTup.first();
-                    if (messageOpt.isEmpty()) {
-                        removeEntry(originalMessageId);
-                        return;
-                    }
-                    final Message message = messageOpt.get();
-                    final short stars = (short) (long) star2.countStarsExcludingAuthor(message).join();
-                    if (stars < minimumStars) {
-                        removeEntry(originalMessageId);
-                        return;
-                    }
-                    if (stars == row.stars() && !redo)
-                        return;
-                    starUpdateList.add(new Tuple<>(stars, originalMessageId));
-                    pool.poolAdd(updateEntry(message, messageTup.second().orElse(null), stars, row));
-                }));
+                inFlight.acquireUninterruptibly();
+                pool.poolAdd(messageExecutor.submit(row.originalMessageId(), () -> rerenderEntry(row.originalMessageId(), user)).whenComplete((r, t) -> inFlight.release()));
             }
-            pool.poolAdd(databaseConnection.updateStarsBulk(starUpdateList));
             pool.join();
-        });
+        }, executor);
+    }
+
+    private Void rerenderEntry(final long originalMessageId, final User user) {
+        final Optional<DatabaseRow> rowOpt = starboardStore.getBoardEntry(originalMessageId).join();
+        if (rowOpt.isEmpty())
+            return null;
+        final DatabaseRow row = rowOpt.get();
+        final CompletableFuture<Optional<Message>> referencedMessageFuture = row.toReferencedMessage(messageCache);
+        final Optional<Message> messageOpt = row.toOriginalMessage(messageCache).join();
+        if (messageOpt.isEmpty())
+            return null;
+        updateEntry(messageOpt.get(), referencedMessageFuture.join().orElse(null), (short) -1, row, Priority.BACKGROUND, user).join();
+        return null;
+    }
+
+    CompletableFuture<Boolean> recalculateEntry(final Star2 star2, final long originalMessageId, final boolean redo, final RateLimiter restBudget) {
+        return messageExecutor.submit(originalMessageId, () -> recalculateEntry0(star2, originalMessageId, redo, restBudget));
+    }
+
+    // Runs under the message's key and re-reads the row, the scanned one may predate a concurrent reaction.
+    // Messages were prefetched for the whole page, so only the reactor listing takes a permit from the budget.
+    private boolean recalculateEntry0(final Star2 star2, final long originalMessageId, final boolean redo, final RateLimiter restBudget) {
+        final Optional<DatabaseRow> rowOpt = starboardStore.getBoardEntry(originalMessageId).join();
+        if (rowOpt.isEmpty())
+            return false;
+        final DatabaseRow row = rowOpt.get();
+        final long guildId = guildIdOf(row);
+        final GuildSettings settings = guildSettings.get(guildId);
+        // Guilds on shards run by another process are left to it, their messages cannot be fetched from here
+        if (settings == null || shardManager.getGuildById(guildId) == null)
+            return false;
+        final CompletableFuture<Optional<Message>> referencedMessageFuture = row.toReferencedMessage(messageCache);
+        final Optional<Message> messageOpt = row.toOriginalMessage(messageCache).join();
+        if (messageOpt.isEmpty()) {
+            removeEntry(originalMessageId, Priority.BACKGROUND).join();
+            return true;
+        }
+        final Message message = messageOpt.get();
+        restBudget.acquire();
+        final short stars = (short) (long) star2.countStarsExcludingAuthor(message, settings.starEmoji()).join();
+        if (stars < settings.minimumStars()) {
+            removeEntry(originalMessageId, Priority.BACKGROUND).join();
+            return true;
+        }
+        if (stars == row.stars() && !redo)
+            return false;
+        updateEntry(message, referencedMessageFuture.join().orElse(null), stars, row, Priority.BACKGROUND).join();
+        return stars != row.stars();
     }
 
-    public CompletableFuture<Void> removeEntriesInChannel(final JDA jda, final long channelId) {
-        return databaseConnection.removeBoardEntriesInChannel(channelId).thenAcceptAsync(databaseRows -> databaseRows.stream().map(row -> row.toStarboardMessage(jda, starboardChannel.getIdLong())).map(CompletableFuture::join).filter(Optional::isPresent).map(Optional::get).forEach(message -> message.delete().queue()));
+    // Rows are removed in bulk, the cleanup of each entry then queues under its key behind any work still running on it
+    public CompletableFuture<Void> removeEntriesInChannel(final long channelId) {
+        return starboardStore.removeBoardEntriesInChannel(channelId).thenAcceptAsync(databaseRows -> forEachRemovedEntry(databaseRows, row -> {
+            embedFingerprints.forget(row.originalMessageId());
+            deleteStarboardMessage(row, Priority.DELETE);
+        }), executor);
     }
 
-    private MessageEmbed createEmbedFromMessage(final Message message, final String footer, final int color) {
-        final User author = message.getAuthor();
+    // The starboard channel itself is gone, so there is nothing left to delete on Discord
+    public CompletableFuture<Void> removeGuildEntries(final long guildId) {
+        return starboardStore.removeGuildBoardEntries(guildId).thenAcceptAsync(databaseRows -> forEachRemovedEntry(databaseRows, row -> embedFingerprints.forget(row.originalMessageId())), executor);
+    }
+
+    private void forEachRemovedEntry(final Collection<DatabaseRow> databaseRows, final Consumer<DatabaseRow> cleanup) {
+        final FuturePool pool = new FuturePool(executor);
+        for (final DatabaseRow row : databaseRows) {
+            pool.poolAdd(messageExecutor.submit(row.originalMessageId(), () -> {
+                cleanup.accept(row);
+                return null;
+            }));
+        }
+        pool.join();
+    }
+
+    // Requests waiting for the starboard channels, background work holds back while live work is queued
+    int outboundBacklog() {
+        return outboundScheduler.queued();
+    }
+
+    public List<String> describeStatistics() {
+        return List.of(embedFingerprints.toString(), outboundScheduler.toString());
+    }
+
+    // A cached message may still carry the author as they were when it was fetched, so a just updated user wins
+    private MessageEmbed createEmbedFromMessage(final Message message, final String footer, final int color, final @Nullable User updatedAuthor) {
+        final User author = updatedAuthor != null && updatedAuthor.getIdLong() == message.getAuthor().getIdLong() ? updatedAuthor : message.getAuthor();
         final EmbedBuilder embedBuilder = new EmbedBuilder()
                 .setColor(color)
                 .setTimestamp(message.getTimeEdited() == null ? message.getTimeCreated() : message.getTimeEdited())
@@ -158,8 +303,14 @@ public final class StarboardChannelManager {
     }
 
     public Collection<MessageEmbed> createEmbed(final Message message, final @Nullable Message referencedMessage, final short stars) {
-        return Stream.of(NullableUtil.mapFromPossiblyNull(referencedMessage, referencedMessageAct -> createEmbedFromMessage(referencedMessageAct, "Original Message", 0xE3E5E8)),
-                        createEmbedFromMessage(message, stars + " " + starRaw, 0xFDD835))
+        return createEmbed(message, referencedMessage, stars, null);
+    }
+
+    private Collection<MessageEmbed> createEmbed(final Message message, final @Nullable Message referencedMessage, final short stars, final @Nullable User updatedAuthor) {
+        final GuildSettings settings = guildSettings.get(message.getGuild().getIdLong());
+        final String starRaw = settings == null ? "" : settings.starEmoji().getName();
+        return Stream.of(NullableUtil.mapFromPossiblyNull(referencedMessage, referencedMessageAct -> createEmbedFromMessage(referencedMessageAct, "Original Message", 0xE3E5E8, updatedAuthor)),
+                        createEmbedFromMessage(message, stars + " " + starRaw, 0xFDD835, updatedAuthor))
                 .filter(Objects::nonNull)
                 .toList();
     }
@@ -0,0 +1,13 @@
+package me.pompompopi.star2.util;
+
+public record CacheStatistics(String name, long hits, long misses, long size) {
+    public double hitRate() {
+        final long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d hits, %d misses (%.1f%% hit rate), %d entries", name, hits, misses, hitRate() * 100, size);
+    }
+}
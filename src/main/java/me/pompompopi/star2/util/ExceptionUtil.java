@@ -36,7 +36,7 @@ public final class ExceptionUtil {
     }
 
     public static <T> CompletableFuture<T> handleException(final CompletableFuture<T> completableFuture, final Consumer<Throwable> handler) {
-        return completableFuture.whenCompleteAsync((r, t) -> {
+        return completableFuture.whenComplete((r, t) -> {
             if (t == null)
                 return;
             handler.accept(t);
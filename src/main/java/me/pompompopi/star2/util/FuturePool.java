@@ -5,11 +5,17 @@ import org.jetbrains.annotations.Nullable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 public final class FuturePool {
     private final List<CompletableFuture<?>> futures = new ArrayList<>();
+    private final Executor executor;
     private boolean finalized = false;
 
+    public FuturePool(final Executor executor) {
+        this.executor = executor;
+    }
+
     @Nullable
     public <T> CompletableFuture<T> poolAdd(final CompletableFuture<T> future) {
         if (finalized)
@@ -22,7 +28,7 @@ public final class FuturePool {
     public CompletableFuture<Void> poolRun(final Runnable runnable) {
         if (finalized)
             return null;
-        final CompletableFuture<Void> future = CompletableFuture.runAsync(runnable);
+        final CompletableFuture<Void> future = CompletableFuture.runAsync(runnable, executor);
         futures.add(future);
         return future;
     }
@@ -0,0 +1,62 @@
+package me.pompompopi.star2.util;
+
+import me.pompompopi.star2.Star2;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Collapses every action submitted for a key within the window into a single run of the most recent one
+public final class KeyedDebouncer {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "star2-debouncer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder executed = new LongAdder();
+    private final Map<Long, Runnable> pending = new ConcurrentHashMap<>();
+    private final String name;
+    private final Executor executor;
+    private final long windowMillis;
+
+    public KeyedDebouncer(final String name, final Executor executor, final long windowMillis) {
+        this.name = name;
+        this.executor = executor;
+        this.windowMillis = windowMillis;
+    }
+
+    public void submit(final long key, final Runnable action) {
+        submitted.increment();
+        if (pending.put(key, action) != null)
+            return;
+        scheduler.schedule(() -> fire(key), windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void fire(final long key) {
+        final Runnable action = pending.remove(key);
+        if (action == null)
+            return;
+        executed.increment();
+        executor.execute(() -> {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                Star2.LOGGER.error("An exception occurred in debounced action for {}", key, e);
+            }
+        });
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + pending.size() + " pending, " + submitted.sum() + " events coalesced into " + executed.sum() + " runs";
+    }
+}
@@ -0,0 +1,55 @@
+package me.pompompopi.star2.util;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+// Runs tasks for the same key strictly in submission order while tasks for different keys run in parallel
+public final class KeyedExecutor {
+    private final Map<Long, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+    private final ThreadLocal<Long> runningKey = new ThreadLocal<>();
+    private final Executor executor;
+
+    public KeyedExecutor(final Executor executor) {
+        this.executor = executor;
+    }
+
+    public <T> CompletableFuture<T> submit(final long key, final Supplier<T> task) {
+        // A task that submits more work for its own key runs it inline, queueing it behind itself would never finish
+        final Long current = runningKey.get();
+        if (current != null && current == key) {
+            try {
+                return CompletableFuture.completedFuture(task.get());
+            } catch (Throwable t) {
+                return CompletableFuture.failedFuture(t);
+            }
+        }
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final CompletableFuture<Void> previous = tails.put(key, done);
+        final Runnable run = () -> {
+            final Long outer = runningKey.get();
+            runningKey.set(key);
+            try {
+                result.complete(task.get());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            } finally {
+                runningKey.set(outer);
+                tails.remove(key, done);
+                done.complete(null);
+            }
+        };
+        if (previous == null)
+            executor.execute(run);
+        else
+            previous.whenCompleteAsync((r, t) -> run.run(), executor);
+        return result;
+    }
+
+    public int activeKeys() {
+        return tails.size();
+    }
+}
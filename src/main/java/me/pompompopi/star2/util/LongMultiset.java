@@ -0,0 +1,113 @@
+package me.pompompopi.star2.util;
+
+import java.util.Arrays;
+
+// Open addressing multiset of primitive longs, avoids boxing every key for large membership indexes
+public final class LongMultiset {
+    private long[] keys;
+    private int[] counts;
+    private int mask;
+    private int size = 0;
+
+    public LongMultiset() {
+        this(16);
+    }
+
+    public LongMultiset(final int expectedSize) {
+        final int capacity = Integer.highestOneBit(Math.max(16, expectedSize * 2 - 1)) << 1;
+        this.keys = new long[capacity];
+        this.counts = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    private static int mix(final long key) {
+        final long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private int find(final long key) {
+        int index = mix(key) & mask;
+        while (counts[index] != 0) {
+            if (keys[index] == key)
+                return index;
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    public boolean contains(final long key) {
+        return find(key) != -1;
+    }
+
+    public int count(final long key) {
+        final int index = find(key);
+        return index == -1 ? 0 : counts[index];
+    }
+
+    public void add(final long key) {
+        if ((size + 1) * 2 > keys.length)
+            resize(keys.length * 2);
+        int index = mix(key) & mask;
+        while (counts[index] != 0) {
+            if (keys[index] == key) {
+                counts[index]++;
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        counts[index] = 1;
+        size++;
+    }
+
+    public boolean remove(final long key) {
+        final int index = find(key);
+        if (index == -1)
+            return false;
+        if (--counts[index] > 0)
+            return true;
+        size--;
+        // Backward shift deletion keeps probe sequences intact without tombstones
+        int gap = index;
+        int next = index;
+        while (true) {
+            next = (next + 1) & mask;
+            if (counts[next] == 0)
+                break;
+            final int home = mix(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                counts[gap] = counts[next];
+                gap = next;
+            }
+        }
+        counts[gap] = 0;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(counts, 0);
+        size = 0;
+    }
+
+    private void resize(final int capacity) {
+        final long[] oldKeys = keys;
+        final int[] oldCounts = counts;
+        this.keys = new long[capacity];
+        this.counts = new int[capacity];
+        this.mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldCounts[i] == 0)
+                continue;
+            int index = mix(oldKeys[i]) & mask;
+            while (counts[index] != 0)
+                index = (index + 1) & mask;
+            keys[index] = oldKeys[i];
+            counts[index] = oldCounts[i];
+        }
+    }
+}
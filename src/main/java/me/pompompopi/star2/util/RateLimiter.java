@@ -0,0 +1,25 @@
+package me.pompompopi.star2.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Hands out permits at a steady rate, each caller reserves the next free slot and parks until it comes up
+public final class RateLimiter {
+    private final long intervalNanos;
+    private long nextSlot = System.nanoTime();
+
+    public RateLimiter(final int permitsPerSecond) {
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+    }
+
+    public void acquire() {
+        final long slot;
+        synchronized (this) {
+            slot = Math.max(System.nanoTime(), nextSlot);
+            nextSlot = slot + intervalNanos;
+        }
+        long remaining;
+        while ((remaining = slot - System.nanoTime()) > 0)
+            LockSupport.parkNanos(remaining);
+    }
+}
@@ -0,0 +1,152 @@
+package me.pompompopi.star2.database;
+
+import me.pompompopi.star2.config.GuildSettings;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JournalStarboardStoreTest {
+    private static final int MAGIC = 0x53324A4C;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 64;
+    private static final int LEGACY_RECORD_SIZE = 56;
+
+    @TempDir
+    Path directory;
+
+    private JournalStarboardStore open(final Path path) throws IOException {
+        return new JournalStarboardStore(path, 3_600_000);
+    }
+
+    private static DatabaseRow row(final long originalMessageId) {
+        return new DatabaseRow(10, originalMessageId, 200, 300, originalMessageId + 1000, Optional.empty(), Optional.empty(), (short) 3);
+    }
+
+    private static void add(final JournalStarboardStore store, final DatabaseRow row) {
+        assertTrue(store.addBoardEntry(row.guildId(), row.originalMessageId(), row.originalChannelId(), row.originalAuthorId(), row.starboardMessageId(), row.referencedMessageId().orElse(null), row.referencedAuthorId().orElse(null), row.stars(), null).join());
+    }
+
+    @Test
+    void replaysEntriesAndGuildSettingsAfterReopening() throws IOException {
+        final Path path = directory.resolve("journal");
+        final JournalStarboardStore store = open(path);
+        final DatabaseRow reply = new DatabaseRow(10, 100, 200, 300, 400, Optional.of(50L), Optional.of(60L), (short) 3);
+        add(store, reply);
+        add(store, row(101));
+        store.updateStars(100, (short) 7).join();
+        store.removeBoardEntry(101).join();
+        store.saveGuildSettings(GuildSettings.of(10, 20, "⭐", (short) 2)).join();
+        store.shutdown();
+
+        final JournalStarboardStore reopened = open(path);
+        assertEquals(Optional.of(reply.withStars((short) 7)), reopened.getBoardEntry(100).join());
+        assertEquals(Optional.empty(), reopened.getBoardEntry(101).join());
+        final List<GuildSettings> settings = List.copyOf(reopened.loadGuildSettings().join());
+        assertEquals(1, settings.size());
+        assertEquals(10, settings.getFirst().guildId());
+        assertEquals(20, settings.getFirst().starboardChannelId());
+        assertEquals("⭐", settings.getFirst().starEmoji().getName());
+        assertEquals(2, settings.getFirst().minimumStars());
+        reopened.shutdown();
+    }
+
+    @Test
+    void discardsATornTailAndKeepsAppendingAfterIt() throws IOException {
+        final Path path = directory.resolve("journal");
+        final JournalStarboardStore store = open(path);
+        add(store, row(1));
+        add(store, row(2));
+        add(store, row(3));
+        store.shutdown();
+        // Flips a byte inside the third record so its checksum no longer matches
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final long offset = HEADER_SIZE + RECORD_SIZE * 2L + 10;
+            final ByteBuffer single = ByteBuffer.allocate(1);
+            channel.read(single, offset);
+            single.flip();
+            final byte flipped = (byte) ~single.get();
+            channel.write(ByteBuffer.wrap(new byte[]{flipped}), offset);
+        }
+
+        final JournalStarboardStore recovered = open(path);
+        assertEquals(Optional.of(row(1)), recovered.getBoardEntry(1).join());
+        assertEquals(Optional.of(row(2)), recovered.getBoardEntry(2).join());
+        assertEquals(Optional.empty(), recovered.getBoardEntry(3).join());
+        add(recovered, row(4));
+        recovered.shutdown();
+
+        final JournalStarboardStore reopened = open(path);
+        assertEquals(List.of(row(1), row(2), row(4)), reopened.getBoardEntriesAfter(Long.MIN_VALUE, 10).join());
+        reopened.shutdown();
+    }
+
+    @Test
+    void upgradesAVersionOneJournal() throws IOException {
+        final Path path = directory.resolve("journal");
+        final ByteBuffer legacy = ByteBuffer.allocate(HEADER_SIZE + LEGACY_RECORD_SIZE * 2);
+        legacy.putInt(0, MAGIC);
+        legacy.putInt(4, 1);
+        writeLegacyRecord(legacy, HEADER_SIZE, new DatabaseRow(0, 100, 200, 300, 400, Optional.of(50L), Optional.of(60L), (short) 4));
+        writeLegacyRecord(legacy, HEADER_SIZE + LEGACY_RECORD_SIZE, row(101).withStars((short) 5));
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            channel.write(legacy);
+        }
+
+        final JournalStarboardStore upgraded = open(path);
+        final List<DatabaseRow> expected = List.of(new DatabaseRow(0, 100, 200, 300, 400, Optional.of(50L), Optional.of(60L), (short) 4), new DatabaseRow(0, 101, 200, 300, 1101, Optional.empty(), Optional.empty(), (short) 5));
+        assertEquals(expected, upgraded.getBoardEntriesAfter(Long.MIN_VALUE, 10).join());
+        upgraded.shutdown();
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(8);
+            channel.read(header, 0);
+            assertEquals(MAGIC, header.getInt(0));
+            assertEquals(2, header.getInt(4));
+        }
+
+        final JournalStarboardStore reopened = open(path);
+        assertEquals(expected, reopened.getBoardEntriesAfter(Long.MIN_VALUE, 10).join());
+        reopened.shutdown();
+    }
+
+    @Test
+    void pagesEntriesInMessageIdOrder() throws IOException {
+        final JournalStarboardStore store = open(directory.resolve("journal"));
+        for (final long id : new long[]{5, 1, 9, 3})
+            add(store, row(id));
+        assertEquals(List.of(row(3), row(5)), store.getBoardEntriesAfter(1, 2).join());
+        assertEquals(List.of(row(9)), store.getBoardEntriesAfter(5, 2).join());
+        assertEquals(2, store.countBoardEntriesAfter(3).join());
+        store.shutdown();
+    }
+
+    private static void writeLegacyRecord(final ByteBuffer buffer, final int position, final DatabaseRow row) {
+        byte flags = 0;
+        if (row.referencedMessageId().isPresent())
+            flags |= 1;
+        if (row.referencedAuthorId().isPresent())
+            flags |= 1 << 1;
+        buffer.put(position, (byte) 1);
+        buffer.put(position + 1, flags);
+        buffer.putShort(position + 2, row.stars());
+        buffer.putLong(position + 4, row.originalMessageId());
+        buffer.putLong(position + 12, row.originalChannelId());
+        buffer.putLong(position + 20, row.originalAuthorId());
+        buffer.putLong(position + 28, row.starboardMessageId());
+        buffer.putLong(position + 36, row.referencedMessageId().orElse(0L));
+        buffer.putLong(position + 44, row.referencedAuthorId().orElse(0L));
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.slice(position, LEGACY_RECORD_SIZE - Integer.BYTES));
+        buffer.putInt(position + LEGACY_RECORD_SIZE - Integer.BYTES, (int) crc.getValue());
+    }
+}
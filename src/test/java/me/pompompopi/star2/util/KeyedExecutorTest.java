@@ -0,0 +1,103 @@
+package me.pompompopi.star2.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeyedExecutorTest {
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final KeyedExecutor keyedExecutor = new KeyedExecutor(executor);
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void runsTasksForOneKeyInSubmissionOrder() {
+        final List<Integer> order = new ArrayList<>();
+        final AtomicInteger running = new AtomicInteger();
+        final List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            final int task = i;
+            results.add(keyedExecutor.submit(1, () -> {
+                assertEquals(1, running.incrementAndGet());
+                if (ThreadLocalRandom.current().nextInt(10) == 0)
+                    Thread.yield();
+                synchronized (order) {
+                    order.add(task);
+                }
+                running.decrementAndGet();
+                return task;
+            }));
+        }
+        for (int i = 0; i < results.size(); i++)
+            assertEquals(i, results.get(i).join());
+        for (int i = 0; i < order.size(); i++)
+            assertEquals(i, order.get(i));
+    }
+
+    @Test
+    void runsDifferentKeysInParallel() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CompletableFuture<Boolean> waiting = keyedExecutor.submit(1, () -> {
+            try {
+                return started.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        keyedExecutor.submit(2, () -> {
+            started.countDown();
+            return null;
+        });
+        assertTrue(waiting.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void keepsGoingAfterAFailedTask() {
+        final CompletableFuture<Object> failed = keyedExecutor.submit(1, () -> {
+            throw new IllegalStateException("boom");
+        });
+        final CompletableFuture<String> next = keyedExecutor.submit(1, () -> "next");
+        final CompletionException thrown = assertThrows(CompletionException.class, failed::join);
+        assertInstanceOf(IllegalStateException.class, thrown.getCause());
+        assertEquals("next", next.join());
+    }
+
+    @Test
+    void runsNestedWorkForTheSameKeyInline() {
+        final CompletableFuture<String> outer = keyedExecutor.submit(1, () -> keyedExecutor.submit(1, () -> "inner").join());
+        assertEquals("inner", outer.orTimeout(5, TimeUnit.SECONDS).join());
+    }
+
+    @Test
+    void forgetsKeysOnceTheirTasksFinish() throws InterruptedException {
+        final List<CompletableFuture<Long>> results = new ArrayList<>();
+        for (long key = 0; key < 100; key++) {
+            final long submitted = key;
+            results.add(keyedExecutor.submit(key % 10, () -> submitted));
+        }
+        results.forEach(CompletableFuture::join);
+        // The key is dropped just after the result completes, so it is polled for briefly
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (keyedExecutor.activeKeys() != 0 && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertEquals(0, keyedExecutor.activeKeys());
+    }
+}
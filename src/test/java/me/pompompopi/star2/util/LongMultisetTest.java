@@ -0,0 +1,87 @@
+package me.pompompopi.star2.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LongMultisetTest {
+    @Test
+    void countsRepeatedKeys() {
+        final LongMultiset multiset = new LongMultiset();
+        multiset.add(7);
+        multiset.add(7);
+        multiset.add(-7);
+        assertEquals(2, multiset.count(7));
+        assertEquals(1, multiset.count(-7));
+        assertEquals(0, multiset.count(8));
+        assertEquals(2, multiset.size());
+    }
+
+    @Test
+    void removesOneOccurrenceAtATime() {
+        final LongMultiset multiset = new LongMultiset();
+        multiset.add(42);
+        multiset.add(42);
+        assertTrue(multiset.remove(42));
+        assertTrue(multiset.contains(42));
+        assertTrue(multiset.remove(42));
+        assertFalse(multiset.contains(42));
+        assertFalse(multiset.remove(42));
+        assertEquals(0, multiset.size());
+    }
+
+    @Test
+    void keepsCountsAcrossResizes() {
+        final LongMultiset multiset = new LongMultiset(1);
+        for (long key = 0; key < 10_000; key++) {
+            multiset.add(key * 31);
+            if (key % 3 == 0)
+                multiset.add(key * 31);
+        }
+        assertEquals(10_000, multiset.size());
+        for (long key = 0; key < 10_000; key++)
+            assertEquals(key % 3 == 0 ? 2 : 1, multiset.count(key * 31));
+    }
+
+    // A small key range in a small table keeps probe sequences long, so removals constantly shift entries back
+    @Test
+    void matchesReferenceUnderRandomAddsAndRemoves() {
+        final LongMultiset multiset = new LongMultiset();
+        final Map<Long, Integer> reference = new HashMap<>();
+        final Random random = new Random(1234);
+        for (int i = 0; i < 200_000; i++) {
+            final long key = random.nextInt(96) - 48;
+            if (random.nextInt(3) == 0) {
+                assertEquals(reference.containsKey(key), multiset.remove(key));
+                reference.computeIfPresent(key, (ignored, count) -> count == 1 ? null : count - 1);
+            } else {
+                multiset.add(key);
+                reference.merge(key, 1, Integer::sum);
+            }
+            if (i % 1000 == 0) {
+                for (long probe = -48; probe < 48; probe++)
+                    assertEquals(reference.getOrDefault(probe, 0), multiset.count(probe));
+            }
+        }
+        assertEquals(reference.size(), multiset.size());
+    }
+
+    @Test
+    void clearEmptiesTheSet() {
+        final LongMultiset multiset = new LongMultiset();
+        for (long key = 0; key < 100; key++)
+            multiset.add(key);
+        multiset.clear();
+        assertEquals(0, multiset.size());
+        for (long key = 0; key < 100; key++)
+            assertFalse(multiset.contains(key));
+        multiset.add(5);
+        assertEquals(1, multiset.count(5));
+    }
+}